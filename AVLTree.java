@@ -4,6 +4,29 @@
 
 */
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.ConcurrentModificationException;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntConsumer;
+import java.util.function.ToLongFunction;
+import java.util.stream.IntStream;
+import java.util.stream.StreamSupport;
+import java.util.zip.CRC32;
+
 /**
  *
  * AVLTree
@@ -14,18 +37,161 @@
 
 public class AVLTree {
 
-	static AVLNode VIRTUAL_NODE;
+	// shared virtual leaf, every missing child of every tree points to it.
+	// its setters throw, and code in this file writes node fields only after
+	// checking isRealNode(), so it holds no state of any tree and trees on
+	// different threads never touch the same memory through it.
+	static final AVLNode VIRTUAL_NODE = new VirtualNode();
 	AVLNode root;
 	AVLNode min;
 	AVLNode max;
+	// number of structural changes, lets cursors detect concurrent modification
+	int modCount;
+	// keeps an aggregate of each subtree in its root, or null
+	final Aggregator aggregator;
+	// the aggregator of MultiAVLTree, its nodes are MultiNodes
+	static final Aggregator MULTIPLICITY = Aggregator.sum(info -> 1);
+
+	// edge codes returned by AVLNode.findEdges(): the left rank difference in
+	// bits 2-3 and the right rank difference in bits 0-1
+	static final int L0R1 = (0 << 2) | 1;
+	static final int L1R0 = (1 << 2) | 0;
+	static final int L0R2 = (0 << 2) | 2;
+	static final int L2R0 = (2 << 2) | 0;
+	static final int L1R1 = (1 << 2) | 1;
+	static final int L1R2 = (1 << 2) | 2;
+	static final int L2R1 = (2 << 2) | 1;
+	static final int L2R2 = (2 << 2) | 2;
+	static final int L1R3 = (1 << 2) | 3;
+	static final int L3R1 = (3 << 2) | 1;
+	// a rank difference outside 0..3, no rebalance case handles it
+	static final int NO_EDGE = -1;
+
+	// node kinds returned by whereToPlace()
+	static final int LEAF = 0;
+	static final int INTERNAL = 1;
+	static final int UNARY_RIGHT = 2;
+	static final int UNARY_LEFT = 3;
+
+	// set operations run by combine() and SetTask
+	static final int UNION = 0;
+	static final int INTERSECTION = 1;
+	static final int DIFFERENCE = 2;
+	// below this many items a set operation does not fork
+	static final int PARALLEL_GRAIN = 1 << 13;
+
+	// snapshot file format of writeTo and mapFrom
+	static final int SNAPSHOT_MAGIC = 0x544C5641; // "AVLT" little endian
+	static final int SNAPSHOT_VERSION = 1;
+	static final int SNAPSHOT_HEADER = 32;
+	// an AVL tree of 2^31 nodes is less than 46 high
+	static final int SNAPSHOT_MAX_HEIGHT = 63;
+	// the most bytes of a snapshot mapped at once
+	static final int SNAPSHOT_WINDOW = 1 << 30;
 
 	// AVLTree constructor
 	// complexity: O(1)
 	public AVLTree() {
-		VIRTUAL_NODE = new AVLNode();
-		root = new AVLNode();
-		min = new AVLNode();
-		max = new AVLNode();
+		this(null);
+	}
+
+	/**
+	 * public AVLTree(Aggregator aggregator)
+	 *
+	 * Returns an empty tree that keeps aggregator's aggregate of every subtree in
+	 * its root, through inserts, deletes, rotations, splits and joins, so that
+	 * aggregate(lo, hi) is O(log n). Each node takes 24 bytes more than in a
+	 * tree without an aggregator.
+	 */
+	// complexity: O(1)
+	public AVLTree(Aggregator aggregator) {
+		this.aggregator = aggregator;
+		root = VIRTUAL_NODE;
+		min = VIRTUAL_NODE;
+		max = VIRTUAL_NODE;
+	}
+
+	/**
+	 * public static AVLTree fromSorted(int[] keys, String[] infos)
+	 *
+	 * Returns a perfectly balanced tree with the items (keys[i], infos[i]). Heights
+	 * and sizes are set while building, no rebalancing is done.
+	 *
+	 * precondition: keys is strictly increasing and keys.length == infos.length,
+	 * otherwise IllegalArgumentException is thrown
+	 */
+	// complexity: O(n)
+	public static AVLTree fromSorted(int[] keys, String[] infos) {
+		if (keys.length != infos.length)
+			throw new IllegalArgumentException(keys.length + " keys but " + infos.length + " infos");
+		return fromSorted(keys, infos, keys.length);
+	}
+
+	/**
+	 * builds a balanced tree from the first n items of keys and infos
+	 */
+	// complexity: O(n)
+	static AVLTree fromSorted(int[] keys, String[] infos, int n) {
+		for (int i = 1; i < n; i++) {
+			if (keys[i - 1] >= keys[i])
+				throw new IllegalArgumentException("keys are not strictly increasing at index " + i + ": "
+						+ keys[i - 1] + ", " + keys[i]);
+		}
+		AVLTree tree = new AVLTree();
+		if (n == 0)
+			return tree;
+		tree.setRoot(buildBalanced(keys, infos, 0, n - 1, null, null));
+		return tree;
+	}
+
+	/**
+	 * returns the root of a balanced subtree of the items lo..hi. the recursion
+	 * depth is log n.
+	 */
+	// complexity: O(hi - lo)
+	private static AVLNode buildBalanced(int[] keys, String[] infos, int lo, int hi, AVLNode parent,
+			Aggregator aggregator) {
+		if (lo > hi)
+			return VIRTUAL_NODE;
+		int mid = (lo + hi) >>> 1;
+		AVLNode node = newNode(keys[mid], infos[mid], parent, aggregator);
+		node.left = buildBalanced(keys, infos, lo, mid - 1, node, aggregator);
+		node.right = buildBalanced(keys, infos, mid + 1, hi, node, aggregator);
+		node.height = Math.max(node.left.height, node.right.height) + 1;
+		node.size = hi - lo + 1;
+		node.updateAggregate();
+		return node;
+	}
+
+	/**
+	 * returns a new node for a tree with the given aggregator, or null
+	 */
+	// complexity: O(1)
+	static AVLNode newNode(int key, String info, AVLNode parent, Aggregator aggregator) {
+		if (aggregator == null)
+			return new AVLNode(key, info, parent);
+		if (aggregator == MULTIPLICITY)
+			return new MultiNode(key, info, parent);
+		return new AggregateNode(key, info, parent, aggregator);
+	}
+
+	/**
+	 * returns an empty tree of the same kind, for the parts of a split
+	 */
+	// complexity: O(1)
+	AVLTree emptyLike() {
+		return new AVLTree(aggregator);
+	}
+
+	/**
+	 * public static Builder builder()
+	 *
+	 * Returns a builder that takes items one by one in increasing key order and
+	 * builds a balanced tree from them in O(n).
+	 */
+	// complexity: O(1)
+	public static Builder builder() {
+		return new Builder();
 	}
 
 	/**
@@ -47,22 +213,35 @@ public class AVLTree {
 	 */
 	// complexity: O(log n)
 	public String search(int k) {
-		IAVLNode node = this.root;
-		return searchRec(node, k);
+		AVLNode node = this.root;
+		int length = 0;
+		while (node != VIRTUAL_NODE) {
+			length++;
+			int key = node.key;
+			if (key == k) {
+				AVLTreeMetrics.searchPath(length);
+				return node.info;
+			}
+			node = k < key ? node.left : node.right;
+		}
+		AVLTreeMetrics.searchPath(length);
+		return null;
 	}
 
+	/**
+	 * public String searchRec(IAVLNode node, int k)
+	 *
+	 * returns the info of an item with key k in the subtree of node, or null
+	 */
+	// complexity: O(log n)
 	public String searchRec(IAVLNode node, int k) {
-		if (node == null)
-			return null;
-
-		int key = node.getKey();
-
-		if (key == k)
-			return node.getValue();
-		else if (k < key)
-			return searchRec(node.getLeft(), k);
-		else
-			return searchRec(node.getRight(), k);
+		while (node != null && node.isRealNode()) {
+			int key = node.getKey();
+			if (key == k)
+				return node.getValue();
+			node = k < key ? node.getLeft() : node.getRight();
+		}
+		return null;
 	}
 
 	/**
@@ -77,17 +256,37 @@ public class AVLTree {
 	// complexity: O(log n)
 	public int insert(int k, String i) {
 		if (empty() == true) {
-			root = new AVLNode(k, i, null);
+			root = newNode(k, i, null, aggregator);
 			min = root;
 			max = root;
+			modCount++;
 			return 0;
 		}
 		AVLNode insertAfter = treePosition(k);
 		if (insertAfter.key == k) {
-			return -1;
+			return insertExisting(insertAfter, i);
 		}
-		AVLNode insertedNode = new AVLNode(k, i, insertAfter);
-		if (k > insertAfter.key) {
+		modCount++;
+		return attach(insertAfter, newNode(k, i, insertAfter, aggregator));
+	}
+
+	/**
+	 * called by insert with the node that already has the key of the item, and
+	 * the info of the item. returns what insert returns, the tree keeps the old
+	 * item.
+	 */
+	// complexity: O(1)
+	int insertExisting(AVLNode node, String info) {
+		return -1;
+	}
+
+	/**
+	 * hangs the new node insertedNode under insertAfter, the last node on its
+	 * search path, and rebalances. returns the number of rebalancing operations.
+	 */
+	// complexity: O(log n)
+	private int attach(AVLNode insertAfter, AVLNode insertedNode) {
+		if (insertedNode.key > insertAfter.key) {
 			insertAfter.right = insertedNode;
 		} else {
 			insertAfter.left = insertedNode;
@@ -102,19 +301,44 @@ public class AVLTree {
 	 * returns the last node seen while looking for the a node with key that equals
 	 * to k
 	 */
-	// complexity: O(log n)
+	// complexity: O(log n), O(1) for a key outside [min, max]
 	private AVLNode treePosition(int k) {
-		AVLNode node = this.root;
+		return fingerPosition(this.root, k);
+	}
+
+	/**
+	 * like treePosition(k), but the search goes up from finger to the lowest
+	 * ancestor whose subtree can hold k and down from there. a key past max or
+	 * before min is found at max or min without a search, which makes appends
+	 * O(1) until the size updates.
+	 */
+	// complexity: O(height of the lowest common ancestor of finger and k)
+	private AVLNode fingerPosition(AVLNode finger, int k) {
+		if (max.isRealNode() && k > max.key)
+			return max;
+		if (min.isRealNode() && k < min.key)
+			return min;
+		return treePosition(fingerStart(finger, k), k);
+	}
+
+	/**
+	 * like treePosition(k), but the search starts at node
+	 */
+	// complexity: O(height of node)
+	private AVLNode treePosition(AVLNode node, int k) {
 		AVLNode prev = node;
+		int length = 0;
 		while (node.isRealNode()) {
+			length++;
 			prev = node;
 			if (node.key == k)
-				return node;
+				break;
 			else if (k < node.key)
 				node = node.left;
 			else
 				node = node.right;
 		}
+		AVLTreeMetrics.searchPath(length);
 		return prev;
 	}
 
@@ -137,6 +361,25 @@ public class AVLTree {
 		if (toDeleteNode.getKey() != k) {
 			return -1;
 		}
+		return deleteExisting(toDeleteNode);
+	}
+
+	/**
+	 * called by delete with the node that has the key to delete. returns what
+	 * delete returns, here the node goes with its item.
+	 */
+	// complexity: O(log n)
+	int deleteExisting(AVLNode node) {
+		return remove(node);
+	}
+
+	/**
+	 * deletes toDeleteNode from the tree and rebalances. returns the number of
+	 * rebalancing operations.
+	 */
+	// complexity: O(log n)
+	private int remove(AVLNode toDeleteNode) {
+		modCount++;
 		updateMaxMinAfterDelete(toDeleteNode);
 		AVLNode afterDelete = sortDelete(toDeleteNode);
 		if (afterDelete == null) {
@@ -184,24 +427,14 @@ public class AVLTree {
 	 */
 	// complexity: O(n)
 	public int[] keysToArray() {
-		int[] array = new int[this.size()];
-		inorderRec(this.root, array, 0);
+		int[] array = new int[root.size];
+		int location = 0;
+		// walking with successor visits every edge twice
+		for (AVLNode node = this.min; node.isRealNode(); node = successor(node))
+			array[location++] = node.key;
 		return array;
 	}
 
-	/**
-	 * the method fills the array by using inorder walk
-	 */
-	// complexity: O(n)
-	private int inorderRec(AVLNode root, int[] array, int location) {
-		if (root.isRealNode()) {
-			location = inorderRec(root.left, array, location);
-			array[location++] = root.key;
-			location = inorderRec(root.right, array, location);
-		}
-		return location;
-	}
-
 	/**
 	 * public String[] infoToArray()
 	 *
@@ -210,24 +443,13 @@ public class AVLTree {
 	 */
 	// complexity: O(n)
 	public String[] infoToArray() {
-		String[] array = new String[size()];
-		infoToSortedRec(this.root, array, 0);
+		String[] array = new String[root.size];
+		int location = 0;
+		for (AVLNode node = this.min; node.isRealNode(); node = successor(node))
+			array[location++] = node.info;
 		return array;
 	}
 
-	/**
-	 * the method fills the array by using inorder walk
-	 */
-	// complexity: O(n)
-	private int infoToSortedRec(AVLNode root, String[] array, int location) {
-		if (root.isRealNode()) {
-			location = infoToSortedRec(root.left, array, location);
-			array[location++] = root.info;
-			location = infoToSortedRec(root.right, array, location);
-		}
-		return location;
-	}
-
 	/**
 	 * public int size()
 	 *
@@ -243,716 +465,2228 @@ public class AVLTree {
 	}
 
 	/**
-	 * public IAVLNode getRoot()
+	 * public int rank(int k)
 	 *
-	 * Returns the root AVL node, or null if the tree is empty
+	 * Returns the number of keys in the tree that are smaller than k. k does not
+	 * have to be in the tree.
+	 */
+	// complexity: O(log n)
+	public int rank(int k) {
+		return countBelow(k, false);
+	}
+
+	/**
+	 * public int select(int i)
 	 *
-	 * precondition: none
-	 * 
-	 * postcondition: none
+	 * Returns the key with rank i, i.e. the (i+1)-th smallest key in the tree.
+	 *
+	 * precondition: 0 <= i < size()
 	 */
-	// complexity: O(1)
-	public IAVLNode getRoot() {
-		if (this.empty() == true) {
-			return null;
+	// complexity: O(log n)
+	public int select(int i) {
+		if (i < 0 || i >= size())
+			throw new IndexOutOfBoundsException("rank " + i + " out of range for size " + size());
+		return selectNode(i).key;
+	}
+
+	/**
+	 * returns the node with i nodes before it. counts nodes, not items, also in
+	 * subclasses that override size, rank and select.
+	 */
+	// complexity: O(log n)
+	private AVLNode selectNode(int i) {
+		AVLNode node = this.root;
+		while (true) {
+			int leftSize = node.left.size;
+			if (i < leftSize) {
+				node = node.left;
+			} else if (i == leftSize) {
+				return node;
+			} else {
+				i -= leftSize + 1;
+				node = node.right;
+			}
 		}
-		return this.root;
 	}
 
 	/**
-	 * public AVLTree[] split(int x)
+	 * public int countRange(int lo, int hi)
 	 *
-	 * splits the tree into 2 trees according to the key x. Returns an array [t1,t2]
-	 * with two AVL trees. keys(t1) < x < keys(t2).
-	 * 
-	 * precondition: search(x) != null (i.e. you can also assume that the tree is
-	 * not empty)
-	 * 
-	 * postcondition: none
+	 * Returns the number of keys k in the tree with lo <= k <= hi, or 0 if lo > hi.
 	 */
 	// complexity: O(log n)
-	public AVLTree[] split(int x) {
-		AVLNode placeToSplit = treePosition(x);
-		AVLNode minT1;
-		AVLNode maxT1;
-		AVLNode minT2;
-		AVLNode maxT2;
-		if (placeToSplit == this.min) {
-			minT1 = VIRTUAL_NODE;
-			maxT1 = VIRTUAL_NODE;
-			minT2 = successor(placeToSplit);
-			maxT2 = this.max;
-		} else if (placeToSplit == this.max) {
-			minT1 = this.min;
-			maxT1 = predecessor(placeToSplit);
-			minT2 = VIRTUAL_NODE;
-			maxT2 = VIRTUAL_NODE;
-		} else {
-			minT1 = this.min;
-			maxT1 = predecessor(placeToSplit);
-			minT2 = successor(placeToSplit);
-			maxT2 = this.max;
-		}
-		AVLTree T1 = new AVLTree();
-		AVLTree T2 = new AVLTree();
-		AVLNode biggerSide = placeToSplit.right;
-		AVLNode smallerSide = placeToSplit.left;
-		T1.root = smallerSide;
-		T2.root = biggerSide;
-		biggerSide.parent = null;
-		smallerSide.parent = null;
-		if (placeToSplit == this.root) {
-			AVLTree[] result = { T1, T2 };
-			T1.min = minT1;
-			T1.max = maxT1;
-			T2.min = minT2;
-			T2.max = maxT2;
-			return result;
-		}
-		AVLTree[] result = splitRec(T1, T2, x, placeToSplit.parent);
-		// Update Min Max
-		result[0].min = minT1;
-		result[0].max = maxT1;
-		result[1].min = minT2;
-		result[1].max = maxT2;
-		return result;
+	public int countRange(int lo, int hi) {
+		if (lo > hi)
+			return 0;
+		return countBelow(hi, true) - countBelow(lo, false);
 	}
 
 	/**
-	 * returns an array with two trees. res[0] keys are smaller than x, res[1] keys
-	 * are bigger than x.
+	 * public int percentile(double p)
+	 *
+	 * Returns the key at the p-th percentile by the nearest-rank method: the
+	 * smallest key such that at least p percent of the keys are smaller or equal
+	 * to it. percentile(0) is the smallest key and percentile(100) the largest.
+	 *
+	 * precondition: !empty(), 0 <= p <= 100
 	 */
 	// complexity: O(log n)
-	private AVLTree[] splitRec(AVLTree t1, AVLTree t2, int x, AVLNode node) {
-		AVLNode nextNode = node.parent;
-		if (node.getKey() < x) {
-			AVLTree subTree = new AVLTree();
-			subTree.root = node.left;
-			subTree.root.parent = null;
-			t1.join(node, subTree);
-		} else {
-			AVLTree subTree = new AVLTree();
-			subTree.root = node.right;
-			subTree.root.parent = null;
-			t2.join(node, subTree);
-		}
-		if (nextNode == null) {
-			AVLTree[] res = { t1, t2 };
-			return res;
-		} else {
-			AVLTree[] res = splitRec(t1, t2, x, nextNode);
-			return res;
-		}
+	public int percentile(double p) {
+		if (empty())
+			throw new NoSuchElementException("percentile of an empty tree");
+		if (!(p >= 0 && p <= 100))
+			throw new IllegalArgumentException("percentile " + p + " is not in [0, 100]");
+		int i = (int) Math.ceil(p / 100 * size()) - 1;
+		return select(Math.max(0, Math.min(i, size() - 1)));
 	}
 
 	/**
-	 * public int join(IAVLNode x, AVLTree t)
+	 * public long aggregate()
 	 *
-	 * joins t and x with the tree. Returns the complexity of the operation
-	 * (|tree.rank - t.rank| + 1).
-	 * 
-	 * precondition: keys(x,t) < keys() or keys(x,t) > keys(). t/tree might be empty
-	 * (rank = -1).
-	 * 
-	 * postcondition: none
+	 * Returns the aggregate of all the items of the tree, or the aggregator's
+	 * identity if the tree is empty.
+	 *
+	 * precondition: the tree was made with an aggregator, otherwise
+	 * IllegalStateException is thrown
+	 */
+	// complexity: O(1)
+	public long aggregate() {
+		Aggregator a = checkAggregator();
+		return root.isRealNode() ? ((AggregateNode) root).aggregate : a.identity();
+	}
+
+	/**
+	 * public long aggregate(int lo, int hi)
+	 *
+	 * Returns the aggregate of the items with lo <= key <= hi in increasing key
+	 * order, or the aggregator's identity if there are none. Only the two search
+	 * paths to lo and hi are walked, the subtrees between them are taken from
+	 * their roots.
+	 *
+	 * precondition: the tree was made with an aggregator, otherwise
+	 * IllegalStateException is thrown
 	 */
 	// complexity: O(log n)
-	public int join(IAVLNode x, AVLTree t) {
-		int delta = Math.abs(t.root.height - this.root.height) + 1;
-		int key = x.getKey();
-		String info = x.getValue();
-		if (delta == 1) {
-			if (this.root.key < t.root.key) {
-				x.setHeight(this.root.getHeight() + 1);
-				this.max = t.max;
-				x.setLeft(this.root);
-				x.setRight(t.root);
-				this.root = (AVLNode) x;
-				x.setParent(null);
-				x.setSize(1 + x.getRight().getSize() + x.getLeft().getSize());
-			} else if (this.root.key > t.root.key) {
-				x.setHeight(this.root.getHeight() + 1);
-				this.min = t.min;
-				x.setRight(this.root);
-				x.setLeft(t.root);
-				this.root = (AVLNode) x;
-				x.setParent(null);
-				x.setSize(1 + x.getLeft().getSize() + x.getRight().getSize());
-			} else {
-				if (this.root.key == -1) {
-					x.setParent(null);
-					x.setHeight(0);
-					x.setSize(1);
-					x.setRight(new AVLNode());
-					x.setLeft(new AVLNode());
-					min = max = root = (AVLNode) x;
-				}
-			}
-			return delta;
-		} else if (empty() == true) {
-			t.insert(key, info);
-			this.root = t.root;
-			this.min = t.min;
-			this.max = t.max;
-			return delta;
-		} else if (t.empty() == true) {
-			insert(key, info);
-			return delta;
-		} else if (this.root.height < t.root.height) {
-			if (this.root.key < t.root.key) {
-				rightJoin(this, (AVLNode) x, t);
-				this.max = t.max;
+	public long aggregate(int lo, int hi) {
+		Aggregator a = checkAggregator();
+		// the highest node in [lo, hi], both paths go down from it
+		AVLNode top = root;
+		while (top.isRealNode() && (top.key < lo || top.key > hi))
+			top = top.key < lo ? top.right : top.left;
+		if (!top.isRealNode())
+			return a.identity();
+		// nodes found on the way to lo come before the ones found above them
+		long below = a.identity();
+		for (AVLNode node = top.left; node.isRealNode();) {
+			if (node.key >= lo) {
+				below = a.combine(a.combine(((AggregateNode) node).value, aggregateOf(node.right, a)), below);
+				node = node.left;
 			} else {
-				leftJoin(t, (AVLNode) x, this);
-				this.min = t.min;
+				node = node.right;
 			}
-			this.root = t.root;
-			t.root = null;
-		} else {
-			if (this.root.key < t.root.key) {
-				leftJoin(this, (AVLNode) x, t);
-				this.max = t.max;
+		}
+		// and on the way to hi after them
+		long above = a.identity();
+		for (AVLNode node = top.right; node.isRealNode();) {
+			if (node.key <= hi) {
+				above = a.combine(above, a.combine(aggregateOf(node.left, a), ((AggregateNode) node).value));
+				node = node.right;
 			} else {
-				rightJoin(t, (AVLNode) x, this);
-				this.min = t.min;
+				node = node.left;
 			}
 		}
-
-		while (((AVLNode) x) != null) {
-			insertRebalance((AVLNode) x);
-			deleteRebalance((AVLNode) x);
-			x = x.getParent();
-		}
-		return delta;
+		return a.combine(a.combine(below, ((AggregateNode) top).value), above);
 	}
 
 	/**
-	 * connects t1 and t2.
+	 * returns the aggregator of the tree, or throws IllegalStateException if it
+	 * has none
 	 */
-	// complexity: O(log n)
-	private void rightJoin(AVLTree t1, AVLNode x, AVLTree t2) {
-		AVLNode rootA = t1.root;
-		AVLNode rootB = t2.root;
-		AVLNode c = new AVLNode();
-		int rightTreeRank = rootA.height;
-		while (rootB.height > rightTreeRank) {
-			if (rootB.left.key == -1)
-				c = rootB;
-			else
-				c = rootB.parent;
+	// complexity: O(1)
+	private Aggregator checkAggregator() {
+		if (aggregator == null)
+			throw new IllegalStateException("the tree was made without an aggregator");
+		return aggregator;
+	}
 
-			rootB = rootB.left;
-		}
-		if (rootB.isRealNode() == true)
-			c = rootB.parent;
-		if (c != null) {
-			c.left = x;
-		}
-		x.parent = c;
-		x.left = rootA;
-		rootA.parent = x;
-		x.right = rootB;
-		rootB.parent = x;
-		x.height = rootB.height + 1;
-		x.setSize(1 + x.right.getSize() + x.left.getSize());
-		sizeUpdateAfterJoin(x.parent, rootA.getSize());
+	// complexity: O(1)
+	private static long aggregateOf(AVLNode node, Aggregator a) {
+		return node.isRealNode() ? ((AggregateNode) node).aggregate : a.identity();
 	}
 
 	/**
-	 * connects t1 and t2.
+	 * returns the number of keys smaller than k, or smaller or equal to k if
+	 * inclusive
 	 */
 	// complexity: O(log n)
-	private void leftJoin(AVLTree t1, AVLNode x, AVLTree t2) {
-		AVLNode rootA = t2.root;
-		AVLNode rootB = t1.root;
-		int rightTreeRank = rootA.height;
-		AVLNode c = new AVLNode();
-		while (rootB.height > rightTreeRank) {
-			if (rootB.right.key == -1)
-				c = rootB;
-			else
-				c = rootB.parent;
-
-			rootB = rootB.right;
-		}
-		if (rootB.isRealNode())
-			c = rootB.parent;
-		if (c != null) {
-			c.right = x;
+	private int countBelow(int k, boolean inclusive) {
+		int count = 0;
+		AVLNode node = this.root;
+		while (node != VIRTUAL_NODE) {
+			if (k < node.key || (k == node.key && !inclusive)) {
+				node = node.left;
+			} else {
+				count += node.left.size + 1;
+				if (k == node.key)
+					return count;
+				node = node.right;
+			}
 		}
-		x.parent = c;
-		x.right = rootA;
-		rootA.parent = x;
-		x.left = rootB;
-		rootB.parent = x;
-		x.height = rootA.height + 1;
-		x.setSize(1 + x.left.getSize() + x.right.getSize());
-		sizeUpdateAfterJoin(x.parent, rootA.getSize());
+		return count;
 	}
 
 	/**
-	 * updates the size of node x recursively until you get to the root that you get from join
+	 * public Cursor ceiling(int k)
+	 *
+	 * Returns a cursor on the smallest key that is greater or equal to k. The
+	 * cursor is not valid if there is no such key.
 	 */
 	// complexity: O(log n)
-	private void sizeUpdateAfterJoin(AVLNode x, int sizeToAdd) {
-		if (x != null) {
-			x.setSize(x.getSize() + 1 + sizeToAdd);
-			sizeUpdateAfterJoin(x.parent, sizeToAdd);
-		}
+	public Cursor ceiling(int k) {
+		return new Cursor(ceilingNode(k));
 	}
 
 	/**
-	 * Rebalancing AVL tree after insert operation. returns the amount of
-	 * rebalancing operations.
+	 * returns the node with the smallest key that is greater or equal to k, or
+	 * VIRTUAL_NODE
 	 */
 	// complexity: O(log n)
-	public int insertRebalance(AVLNode rebalancedNode) {
-		if (rebalancedNode == null) {
-			return 0;
-		}
-		String edge = rebalancedNode.findEdges();
-		switch (edge) {
-		case "L0R1":
-		case "L1R0":
-			rebalancedNode.promote();
-			return 1 + insertRebalance(rebalancedNode.parent);
-		case "L0R2":
-			return insertRebalanceL0R2(rebalancedNode);
-		case "L2R0":
-			return insertRebalanceL2R0(rebalancedNode);
+	private AVLNode ceilingNode(int k) {
+		AVLNode found = VIRTUAL_NODE;
+		AVLNode node = this.root;
+		while (node != VIRTUAL_NODE) {
+			if (k == node.key)
+				return node;
+			if (k < node.key) {
+				found = node;
+				node = node.left;
+			} else {
+				node = node.right;
+			}
 		}
-		return 0;
+		return found;
 	}
 
 	/**
-	 * Rebalance method for edge L0R2 returns the number of rebalance operations.
+	 * public Cursor floor(int k)
+	 *
+	 * Returns a cursor on the largest key that is smaller or equal to k. The
+	 * cursor is not valid if there is no such key.
 	 */
-	// complexity: O(1)
-	private int insertRebalanceL0R2(AVLNode nodeToRebalnce) {
-		AVLNode child = nodeToRebalnce.left;
-		String edge = child.findEdges();
-		switch (edge) {
-		case "L1R1":
-			nodeToRebalnce.promote();
-			rotate(true, child);
-			nodeToRebalnce.demote();
-			child.promote();
-			return 4;
-		case "L1R2":
-			rotate(true, child);
-			nodeToRebalnce.demote();
-			return 2;
-		case "L2R1":
-			AVLNode rightChild = child.right;
-			rotate(false, rightChild);
-			rotate(true, rightChild);
-			child.demote();
-			nodeToRebalnce.demote();
-			rightChild.promote();
-			return 5;
-		default:
-			return 0;
+	// complexity: O(log n)
+	public Cursor floor(int k) {
+		AVLNode found = VIRTUAL_NODE;
+		AVLNode node = this.root;
+		while (node != VIRTUAL_NODE) {
+			if (k == node.key)
+				return new Cursor(node);
+			if (k > node.key) {
+				found = node;
+				node = node.right;
+			} else {
+				node = node.left;
+			}
 		}
+		return new Cursor(found);
 	}
 
 	/**
-	 * Rebalance method for edge L2R0. returns the number of rebalance operations.
+	 * public Finger finger()
+	 *
+	 * Returns a finger on the largest key, where time-ordered inserts go. The
+	 * finger is not valid if the tree is empty.
 	 */
 	// complexity: O(1)
-	private int insertRebalanceL2R0(AVLNode nodeToRebalance) {
-		AVLNode child = nodeToRebalance.right;
-		String edge = child.findEdges();
-		switch (edge) {
-		case "L1R1":
-			nodeToRebalance.promote();
-			rotate(false, child);
-			nodeToRebalance.demote();
-			child.promote();
-			return 4;
-		case "L2R1":
-			rotate(false, child);
-			nodeToRebalance.demote();
-			return 2;
-		case "L1R2":
-			AVLNode leftChild = child.left;
-			rotate(true, leftChild);
-			rotate(false, leftChild);
-			child.demote();
-			nodeToRebalance.demote();
-			leftChild.promote();
-			return 5;
-		default:
-			return 0;
-		}
+	public Finger finger() {
+		return new Finger(max);
 	}
 
 	/**
-	 * checks the type of the delete that we need to use in order to delete the
-	 * given node
+	 * public Finger finger(int k)
+	 *
+	 * Returns a finger on the key k, or on the last node seen looking for it if it
+	 * is not in the tree.
 	 */
 	// complexity: O(log n)
-	private AVLNode sortDelete(AVLNode node) {
-		String location = whereToPlace(node);
-		switch (location) {
-		case "LEAF":
-			return deleteLeaf(node);
-		case "INTERNAL":
-			return deleteInternalNode(node);
-		case "UNARY_RIGHT":
-			return deleteUnaryNode(true, node);
-		case "UNARY_LEFT":
-			return deleteUnaryNode(false, node);
-		default:
-			throw new RuntimeException();
-		}
+	public Finger finger(int k) {
+		return new Finger(treePosition(k));
 	}
 
 	/**
-	 * deletes an internal node
+	 * public IntStream keys(int lo, int hi)
+	 *
+	 * Returns the keys k with lo <= k < hi in ascending order, read lazily from
+	 * the tree. The tree must not be modified while the stream is used.
+	 */
+	// complexity: O(log n) to start, O(1) amortized per key
+	public IntStream keys(int lo, int hi) {
+		return StreamSupport.intStream(keySpliterator(lo, hi), false);
+	}
+
+	/**
+	 * public Spliterator.OfInt keySpliterator(int lo, int hi)
+	 *
+	 * Returns a spliterator over the keys k with lo <= k < hi. It splits by rank,
+	 * so parallel streams get halves of equal size.
 	 */
 	// complexity: O(log n)
-	private AVLNode deleteInternalNode(AVLNode internalNode) {
-		AVLNode successor = successor(internalNode);
-		internalNode.setValue(successor.getValue());
-		internalNode.setKey(successor.getKey());
-		if (successor == this.max) {
-			this.max = internalNode;
-		}
-		return sortDelete(successor);
+	public Spliterator.OfInt keySpliterator(int lo, int hi) {
+		return new KeySpliterator(lo, hi);
 	}
 
 	/**
-	 * deletes leaf
+	 * public IAVLNode getRoot()
+	 *
+	 * Returns the root AVL node, or null if the tree is empty
+	 *
+	 * precondition: none
+	 * 
+	 * postcondition: none
 	 */
 	// complexity: O(1)
-	private AVLNode deleteLeaf(AVLNode leaf) {
-		if (leaf == this.root)
-			root = min = max = VIRTUAL_NODE;
-		else
-			leaf.parent.setSon(leaf.getSide(), new AVLNode());
+	public IAVLNode getRoot() {
+		if (this.empty() == true) {
+			return null;
+		}
+		return this.root;
+	}
 
-		return leaf.parent;
+	/**
+	 * public AVLTree[] split(int x)
+	 *
+	 * splits the tree into 2 trees according to the key x. Returns an array [t1,t2]
+	 * with two AVL trees. keys(t1) < x < keys(t2). x does not have to be in the
+	 * tree, if it is its item is in neither tree (see partition to keep it). The
+	 * tree is left empty.
+	 */
+	// complexity: O(log n)
+	public AVLTree[] split(int x) {
+		Partition partition = partition(x);
+		AVLTree[] result = { partition.getLeft(), partition.getRight() };
+		return result;
 	}
 
 	/**
-	 * deletes unary node
+	 * public Partition partition(int x)
+	 *
+	 * splits the tree into the items with keys smaller than x, the item with key
+	 * x if there is one, and the items with keys bigger than x. The middle item
+	 * comes as a single node that can be passed to join. The tree is left empty.
+	 *
+	 * The subtrees cut off on the way up are joined directly as nodes, only the
+	 * two result trees are allocated.
+	 */
+	// complexity: O(log n)
+	public Partition partition(int x) {
+		modCount++;
+		Parts parts = splitNodes(root, x, null);
+		if (!empty())
+			AVLTreeMetrics.split(parts.depth);
+		root = min = max = VIRTUAL_NODE;
+		AVLTree left = emptyLike();
+		left.setRoot(parts.left);
+		AVLTree right = emptyLike();
+		right.setRoot(parts.right);
+		return new Partition(left, parts.middle, right);
+	}
+
+	/**
+	 * public AVLNode createNode(int k, String i)
+	 *
+	 * returns a new node with key k and info i, of the kind this tree keeps (with
+	 * its aggregator, if any), to pass to join. It replaces tree.new AVLNode(k, i,
+	 * null), which no longer compiles since AVLNode is a static class.
 	 */
 	// complexity: O(1)
-	private AVLNode deleteUnaryNode(boolean side, AVLNode unaryNode) {
-		AVLNode son = getUnarySon(unaryNode);
-		son.parent = unaryNode.parent;
+	public AVLNode createNode(int k, String i) {
+		return newNode(k, i, null, aggregator);
+	}
 
-		if (unaryNode == this.root)
-			this.root = son;
+	/**
+	 * public int join(IAVLNode x, AVLTree t)
+	 *
+	 * joins t and x with the tree. Returns the complexity of the operation
+	 * (|tree.rank - t.rank| + 1). t is left empty.
+	 * 
+	 * precondition: keys(t) < x.key < keys() or keys() < x.key < keys(t). t/tree
+	 * might be empty (rank = -1). t and x come from trees with the same
+	 * aggregator as the tree, otherwise IllegalArgumentException is thrown.
+	 * 
+	 * postcondition: none
+	 */
+	// complexity: O(|tree.rank - t.rank| + 1)
+	public int join(IAVLNode x, AVLTree t) {
+		checkAggregator(t);
+		if (aggregator != null && !(x instanceof AggregateNode && ((AggregateNode) x).aggregator == aggregator))
+			throw new IllegalArgumentException("x is not a node of a tree with the same aggregator");
+		if (aggregator == null && x instanceof AggregateNode)
+			throw new IllegalArgumentException("x is a node of a tree with an aggregator");
+		modCount++;
+		t.modCount++;
+		int delta = Math.abs(t.root.height - this.root.height) + 1;
+		AVLTreeMetrics.join(delta);
+		AVLNode node = (AVLNode) x;
+		boolean tBelow = empty() ? t.empty() || t.root.key < node.key : node.key < root.key;
+		AVLNode joined = tBelow ? joinNodes(t.root, node, root, null) : joinNodes(root, node, t.root, null);
+		AVLNode low = tBelow ? t.min : min;
+		AVLNode high = tBelow ? max : t.max;
+		t.root = t.min = t.max = VIRTUAL_NODE;
+		root = joined;
+		min = low.isRealNode() ? low : node;
+		max = high.isRealNode() ? high : node;
+		return delta;
+	}
+
+	/**
+	 * public void union(AVLTree t)
+	 *
+	 * adds the items of t to the tree. For a key that is in both trees the info of
+	 * this tree is kept. t is left empty. Trees of more than PARALLEL_GRAIN items
+	 * are merged in parallel on the common ForkJoinPool.
+	 *
+	 * precondition: t != this
+	 */
+	// complexity: O(m log(n/m + 1)) work and O(log n log m) span, for sizes m <= n
+	public void union(AVLTree t) {
+		combineWith(UNION, t);
+	}
+
+	/**
+	 * public void intersection(AVLTree t)
+	 *
+	 * keeps only the items whose key is also in t, with the info of this tree. t is
+	 * left empty.
+	 *
+	 * precondition: t != this
+	 */
+	// complexity: O(m log(n/m + 1)) work and O(log n log m) span, for sizes m <= n
+	public void intersection(AVLTree t) {
+		combineWith(INTERSECTION, t);
+	}
+
+	/**
+	 * public void difference(AVLTree t)
+	 *
+	 * removes the items whose key is in t. t is left empty.
+	 *
+	 * precondition: t != this
+	 */
+	// complexity: O(m log(n/m + 1)) work and O(log n log m) span, for sizes m <= n
+	public void difference(AVLTree t) {
+		combineWith(DIFFERENCE, t);
+	}
+
+	/**
+	 * public void filter(ItemPredicate p)
+	 *
+	 * keeps only the items (k, i) for which p.test(k, i) is true. p may be called
+	 * from several threads and in any key order. If p throws, the exception is
+	 * passed on and the tree is not changed.
+	 */
+	// complexity: O(n) work and O(log^2 n) span
+	public void filter(ItemPredicate p) {
+		modCount++;
+		AVLNode node = root;
+		// p sees every item before the tree is taken apart, so nothing is lost
+		// if it throws
+		boolean[] keep = new boolean[node.size];
+		if (node.size > PARALLEL_GRAIN)
+			ForkJoinPool.commonPool().invoke(new FilterTask(node, 0, p, keep));
 		else
-			unaryNode.parent.setSon(unaryNode.getSide(), son);
+			test(node, 0, p, keep);
+		root = min = max = VIRTUAL_NODE;
+		if (node.size > PARALLEL_GRAIN)
+			node = ForkJoinPool.commonPool().invoke(new FilterTask(node, 0, null, keep));
+		else
+			node = filter(node, 0, keep);
+		setRoot(node);
+	}
 
-		return unaryNode.parent;
+	/**
+	 * public BatchStats insertAll(int[] keys, String[] infos)
+	 *
+	 * inserts the items (keys[i], infos[i]) whose key is not in the tree yet, like
+	 * calling insert for each i in order: the info of a key that is already in the
+	 * tree is not changed, and of a key that repeats in keys the first one wins.
+	 *
+	 * The batch is sorted first. A batch that is all above or all below the keys
+	 * of the tree is built into a balanced tree and joined on in O(m + log n).
+	 * Otherwise the keys are inserted in increasing order, each search starting
+	 * from the previous insert instead of the root, so the paths that the batch
+	 * shares are walked while they are still in cache.
+	 *
+	 * precondition: keys.length == infos.length, otherwise IllegalArgumentException
+	 * is thrown
+	 */
+	// complexity: O(m log m + m log(n/m + 1)) searches, O(m log n) size updates
+	public BatchStats insertAll(int[] keys, String[] infos) {
+		if (keys.length != infos.length)
+			throw new IllegalArgumentException(keys.length + " keys but " + infos.length + " infos");
+		int[] sortedKeys = new int[keys.length];
+		String[] sortedInfos = new String[keys.length];
+		int n = sortDistinct(keys, infos, sortedKeys, sortedInfos);
+		int before = root.size;
+		if (n == 0)
+			return new BatchStats(keys.length, 0, 0);
+		if (empty() || sortedKeys[0] > max.key || sortedKeys[n - 1] < min.key) {
+			modCount++;
+			LongAdder ops = new LongAdder();
+			AVLNode batch = buildBalanced(sortedKeys, sortedInfos, 0, n - 1, null, aggregator);
+			setRoot(sortedKeys[0] > max.key ? joinNodes(root, batch, ops) : joinNodes(batch, root, ops));
+			return new BatchStats(keys.length, n, ops.sum());
+		}
+		long operations = 0;
+		AVLNode finger = root;
+		for (int j = 0; j < n; j++) {
+			int k = sortedKeys[j];
+			AVLNode insertAfter = fingerPosition(finger, k);
+			if (insertAfter.key == k) {
+				finger = insertAfter;
+				continue;
+			}
+			modCount++;
+			finger = newNode(k, sortedInfos[j], insertAfter, aggregator);
+			operations += attach(insertAfter, finger);
+		}
+		return new BatchStats(keys.length, root.size - before, operations);
 	}
 
 	/**
-	 * Rebalancing the tree after the deletion of a node.
+	 * public BatchStats deleteAll(int[] keys)
+	 *
+	 * deletes the items whose key is in keys. Keys that are not in the tree, or
+	 * repeat, are skipped. The batch is sorted and deleted in increasing order,
+	 * each search starting from the predecessor of the last deleted key.
 	 */
-	// complexity: O(log n)
-	private int deleteRebalance(AVLNode rebalanceNode) {
-		if (rebalanceNode == null) {
-			return 0;
+	// complexity: O(m log m + m log(n/m + 1)) searches, O(m log n) size updates
+	public BatchStats deleteAll(int[] keys) {
+		int[] sortedKeys = new int[keys.length];
+		int n = sortDistinct(keys, null, sortedKeys, null);
+		int before = root.size;
+		long operations = 0;
+		AVLNode finger = root;
+		for (int j = 0; j < n && !empty(); j++) {
+			int k = sortedKeys[j];
+			AVLNode toDeleteNode = fingerPosition(finger, k);
+			if (toDeleteNode.key != k) {
+				finger = toDeleteNode;
+				continue;
+			}
+			// the predecessor stays in the tree and is below the next key
+			finger = predecessor(toDeleteNode);
+			operations += remove(toDeleteNode);
 		}
-		String edge = rebalanceNode.findEdges();
-		switch (edge) {
-		case "L2R2":
-			rebalanceNode.demote();
-			return 1 + deleteRebalance(rebalanceNode.parent);
-		case "L1R3":
-			return deleteRebalanceL1R3(rebalanceNode);
-		case "L3R1":
-			return deleteRebalanceL3R1(rebalanceNode);
-		default:
-			return 0;
+		return new BatchStats(keys.length, before - root.size, operations);
+	}
+
+	/**
+	 * public void writeTo(Path path) throws IOException
+	 *
+	 * writes the tree to path in a binary format that mapFrom reads back. After a
+	 * 32 byte header come the keys, the sizes and the heights of the nodes in key
+	 * order, then the infos, each as its UTF-8 length (-1 for null) and its bytes.
+	 * Numbers are little endian. The header holds a CRC32 of everything after it.
+	 *
+	 * The file is written next to path and moved over it once it is complete, so
+	 * path always holds either the old snapshot or the new one.
+	 */
+	// complexity: O(n)
+	public void writeTo(Path path) throws IOException {
+		int n = root.size;
+		long keysAt = SNAPSHOT_HEADER;
+		long sizesAt = keysAt + 4L * n;
+		long heightsAt = sizesAt + 4L * n;
+		long poolAt = heightsAt + n;
+		Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+		try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			RegionWriter keys = new RegionWriter(channel, keysAt);
+			RegionWriter sizes = new RegionWriter(channel, sizesAt);
+			RegionWriter heights = new RegionWriter(channel, heightsAt);
+			RegionWriter pool = new RegionWriter(channel, poolAt);
+			for (AVLNode node = min; node.isRealNode(); node = successor(node)) {
+				keys.reserve(4).putInt(node.key);
+				sizes.reserve(4).putInt(node.size);
+				heights.reserve(1).put((byte) node.height);
+				if (node.info == null) {
+					pool.reserve(4).putInt(-1);
+				} else {
+					byte[] bytes = node.info.getBytes(StandardCharsets.UTF_8);
+					pool.reserve(4).putInt(bytes.length);
+					pool.write(bytes);
+				}
+			}
+			keys.flush();
+			sizes.flush();
+			heights.flush();
+			pool.flush();
+			long end = pool.position;
+			ByteBuffer header = ByteBuffer.allocate(SNAPSHOT_HEADER).order(ByteOrder.LITTLE_ENDIAN);
+			header.putInt(SNAPSHOT_MAGIC).putInt(SNAPSHOT_VERSION).putInt(n).putInt(0);
+			header.putLong(end - poolAt).putLong(checksum(channel, SNAPSHOT_HEADER, end));
+			header.flip();
+			while (header.hasRemaining())
+				channel.write(header, header.position());
+			channel.force(true);
+		}
+		Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * public static AVLTree mapFrom(Path path) throws IOException
+	 *
+	 * reads a tree written by writeTo. The file is mapped with FileChannel.map and
+	 * its checksum is checked before anything is built. The nodes are linked back
+	 * into the same shape from their heights in one pass, no rebalancing is done.
+	 *
+	 * throws IOException if the file is not a snapshot, is cut short or its
+	 * checksum does not match
+	 */
+	// complexity: O(n)
+	public static AVLTree mapFrom(Path path) throws IOException {
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			long length = channel.size();
+			if (length < SNAPSHOT_HEADER)
+				throw new IOException(path + " is too short for a snapshot");
+			ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, SNAPSHOT_HEADER)
+					.order(ByteOrder.LITTLE_ENDIAN);
+			if (header.getInt() != SNAPSHOT_MAGIC)
+				throw new IOException(path + " is not a snapshot");
+			int version = header.getInt();
+			if (version != SNAPSHOT_VERSION)
+				throw new IOException(path + " has snapshot version " + version + ", expected " + SNAPSHOT_VERSION);
+			int n = header.getInt();
+			header.getInt();
+			long poolBytes = header.getLong();
+			long expected = header.getLong();
+			long poolAt = SNAPSHOT_HEADER + 9L * n;
+			if (n < 0 || poolBytes < 0 || poolAt + poolBytes != length)
+				throw new IOException(path + " is " + length + " bytes, the header describes " + (poolAt + poolBytes));
+			if (checksum(channel, SNAPSHOT_HEADER, length) != expected)
+				throw new IOException(path + " failed its checksum");
+			int[] keys = new int[n];
+			int[] sizes = new int[n];
+			byte[] heights = new byte[n];
+			readInts(channel, SNAPSHOT_HEADER, keys);
+			readInts(channel, SNAPSHOT_HEADER + 4L * n, sizes);
+			if (n > 0)
+				channel.map(FileChannel.MapMode.READ_ONLY, SNAPSHOT_HEADER + 8L * n, n).get(heights);
+			String[] infos = readPool(channel, poolAt, length, n);
+			AVLTree tree = new AVLTree();
+			tree.setRoot(linkByHeight(keys, infos, sizes, heights));
+			if (tree.size() != n)
+				throw new IOException(path + " holds " + n + " items but its root has size " + tree.size());
+			return tree;
 		}
 	}
 
 	/**
-	 * Rebalance method for the case of edge L3R1.
+	 * links the nodes of a snapshot, given in key order, back into a tree. a
+	 * parent is higher than everything below it, so the root of any run of nodes
+	 * is its highest one and the nodes can be linked with a stack of the right
+	 * spine built so far.
 	 */
-	// complexity: O(1)
-	private int deleteRebalanceL3R1(AVLNode rebalanceNode) {
-		AVLNode son = rebalanceNode.right;
-		String edge = son.findEdges();
-		switch (edge) {
-		case "L1R1":
-			rotate(false, son);
-			rebalanceNode.demote();
-			son.promote();
-			return 3;
-		case "L1R2":
-			AVLNode sonOfSon = son.left;
-			rotate(true, sonOfSon);
-			rotate(false, sonOfSon);
-			sonOfSon.promote();
-			rebalanceNode.demote();
-			rebalanceNode.demote();
-			son.demote();
-			return 6 + deleteRebalance(sonOfSon.parent);
-		case "L2R1":
-			rotate(false, son);
-			rebalanceNode.demote();
-			rebalanceNode.demote();
-			return 3 + deleteRebalance(son.parent);
-		default:
-			return 0;
+	// complexity: O(n)
+	private static AVLNode linkByHeight(int[] keys, String[] infos, int[] sizes, byte[] heights)
+			throws IOException {
+		AVLNode[] spine = new AVLNode[SNAPSHOT_MAX_HEIGHT + 1];
+		int depth = 0;
+		for (int i = 0; i < keys.length; i++) {
+			if (i > 0 && keys[i - 1] >= keys[i])
+				throw new IOException("snapshot keys are not strictly increasing at index " + i);
+			if (heights[i] < 0 || heights[i] > SNAPSHOT_MAX_HEIGHT)
+				throw new IOException("snapshot height " + heights[i] + " at index " + i);
+			AVLNode node = new AVLNode(keys[i], infos[i], null);
+			node.height = heights[i];
+			node.size = sizes[i];
+			AVLNode below = VIRTUAL_NODE;
+			while (depth > 0 && spine[depth - 1].height < node.height)
+				below = spine[--depth];
+			node.left = below;
+			if (below.isRealNode())
+				below.parent = node;
+			if (depth > 0) {
+				spine[depth - 1].right = node;
+				node.parent = spine[depth - 1];
+			}
+			spine[depth++] = node;
+		}
+		return depth > 0 ? spine[0] : VIRTUAL_NODE;
+	}
+
+	/**
+	 * returns the CRC32 of the bytes from..to of channel, mapping at most
+	 * SNAPSHOT_WINDOW bytes at a time
+	 */
+	// complexity: O(to - from)
+	private static long checksum(FileChannel channel, long from, long to) throws IOException {
+		CRC32 crc = new CRC32();
+		for (long at = from; at < to; at += SNAPSHOT_WINDOW)
+			crc.update(channel.map(FileChannel.MapMode.READ_ONLY, at, Math.min(SNAPSHOT_WINDOW, to - at)));
+		return crc.getValue();
+	}
+
+	/**
+	 * fills into with the little endian ints that start at position
+	 */
+	// complexity: O(into.length)
+	private static void readInts(FileChannel channel, long position, int[] into) throws IOException {
+		int chunk = SNAPSHOT_WINDOW / 4;
+		for (int from = 0; from < into.length; from += chunk) {
+			int count = Math.min(chunk, into.length - from);
+			channel.map(FileChannel.MapMode.READ_ONLY, position + 4L * from, 4L * count)
+					.order(ByteOrder.LITTLE_ENDIAN).asIntBuffer().get(into, from, count);
 		}
 	}
 
 	/**
-	 * Rebalance method for the case of edge L1R3.
+	 * decodes the n infos of the pool that runs from position to end. an info
+	 * with the same bytes as the one before it gets the same String, so a tree
+	 * whose infos repeat does not come back with a String per node.
 	 */
+	// complexity: O(n + end - position)
+	private static String[] readPool(FileChannel channel, long position, long end, int n) throws IOException {
+		String[] infos = new String[n];
+		byte[] bytes = new byte[64];
+		byte[] previous = new byte[64];
+		int previousLength = -1;
+		ByteBuffer window = ByteBuffer.allocate(0);
+		for (int i = 0; i < n; i++) {
+			if (window.remaining() < 4)
+				window = mapWindow(channel, position, end);
+			if (window.remaining() < 4)
+				throw new IOException("snapshot pool ends at info " + i + " of " + n);
+			int length = window.getInt();
+			position += 4;
+			if (length == -1)
+				continue;
+			if (length < 0 || length > end - position)
+				throw new IOException("snapshot info " + i + " has length " + length);
+			if (window.remaining() < length)
+				window = mapWindow(channel, position, end);
+			if (bytes.length < length)
+				bytes = new byte[Math.max(length, 2 * bytes.length)];
+			window.get(bytes, 0, length);
+			position += length;
+			if (length == previousLength && i > 0 && infos[i - 1] != null
+					&& Arrays.equals(bytes, 0, length, previous, 0, length)) {
+				infos[i] = infos[i - 1];
+				continue;
+			}
+			infos[i] = new String(bytes, 0, length, StandardCharsets.UTF_8);
+			byte[] swap = previous;
+			previous = bytes;
+			bytes = swap;
+			previousLength = length;
+		}
+		return infos;
+	}
+
 	// complexity: O(1)
-	private int deleteRebalanceL1R3(AVLNode rebalanceNode) {
-		AVLNode son = rebalanceNode.left;
-		String edge = son.findEdges();
-		switch (edge) {
-		case "L1R1":
-			rotate(true, son);
-			rebalanceNode.demote();
-			son.promote();
-			return 3;
-		case "L2R1":
-			AVLNode sonOfSon = son.right;
-			rotate(false, sonOfSon);
-			rotate(true, sonOfSon);
-			sonOfSon.promote();
-			rebalanceNode.demote();
-			rebalanceNode.demote();
-			son.demote();
-			return 6 + deleteRebalance(sonOfSon.parent);
-		case "L1R2":
-			rotate(true, son);
-			rebalanceNode.demote();
-			rebalanceNode.demote();
-			return 3 + deleteRebalance(son.parent);
-		default:
-			return 0;
+	private static ByteBuffer mapWindow(FileChannel channel, long position, long end) throws IOException {
+		return channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(SNAPSHOT_WINDOW, end - position))
+				.order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	/**
+	 * returns the node to start looking for k from: the lowest ancestor of finger
+	 * whose subtree can hold k, or the root if finger is not a node. climbing
+	 * towards k only passes parents on the far side of finger, so the subtree
+	 * reached is bounded on that side by a key beyond k, and on the other side
+	 * by a bound of finger itself. a finger with key k is returned as it is.
+	 */
+	// complexity: O(log n), O(1) if finger has key k
+	private AVLNode fingerStart(AVLNode finger, int k) {
+		if (!finger.isRealNode())
+			return root;
+		if (finger.key == k)
+			return finger;
+		if (finger.key < k) {
+			while (finger.parent != null && finger.parent.key <= k)
+				finger = finger.parent;
+		} else {
+			while (finger.parent != null && finger.parent.key >= k)
+				finger = finger.parent;
 		}
+		return finger;
+	}
+
+	/**
+	 * sorts keys into sortedKeys without repeats, with the info of the first
+	 * occurrence of each key in sortedInfos (unless infos is null). returns the number of
+	 * distinct keys.
+	 */
+	// complexity: O(m log m)
+	private static int sortDistinct(int[] keys, String[] infos, int[] sortedKeys, String[] sortedInfos) {
+		// the key in the high half and the index in the low half, so equal keys
+		// sort by index
+		long[] packed = new long[keys.length];
+		for (int i = 0; i < keys.length; i++)
+			packed[i] = ((long) keys[i] << 32) | i;
+		Arrays.sort(packed);
+		int n = 0;
+		for (long p : packed) {
+			int key = (int) (p >> 32);
+			if (n > 0 && sortedKeys[n - 1] == key)
+				continue;
+			sortedKeys[n] = key;
+			if (infos != null)
+				sortedInfos[n] = infos[(int) p];
+			n++;
+		}
+		return n;
+	}
+
+	/**
+	 * runs union, intersection or difference of the tree and t, both are emptied
+	 * first and the tree gets the result
+	 */
+	// complexity: O(m log(n/m + 1))
+	private void combineWith(int op, AVLTree t) {
+		if (t == this)
+			throw new IllegalArgumentException("cannot combine a tree with itself");
+		checkAggregator(t);
+		t.modCount++;
+		AVLNode b = t.root;
+		t.root = t.min = t.max = VIRTUAL_NODE;
+		merge(op, b, null);
+	}
+
+	/**
+	 * replaces the tree by its combination with the detached subtree b
+	 */
+	// complexity: O(m log(n/m + 1))
+	private void merge(int op, AVLNode b, LongAdder ops) {
+		modCount++;
+		AVLNode a = root;
+		root = min = max = VIRTUAL_NODE;
+		AVLNode node;
+		if (a.size + b.size > PARALLEL_GRAIN)
+			node = ForkJoinPool.commonPool().invoke(new SetTask(op, a, b, ops));
+		else
+			node = combine(op, a, b, ops);
+		setRoot(node);
 	}
 
 	/**
-	 * updates the sizes of the relevant nodes after insertion.
+	 * throws IllegalArgumentException unless t has the aggregator of the tree,
+	 * nodes of the two trees are about to be mixed
+	 */
+	// complexity: O(1)
+	private void checkAggregator(AVLTree t) {
+		if (t.aggregator != aggregator)
+			throw new IllegalArgumentException("t has a different aggregator than the tree");
+	}
+
+	/**
+	 * makes node the root of the tree and finds min and max
 	 */
 	// complexity: O(log n)
-	public void updateSizeAfterInsert(AVLNode node) {
-		while (node != null) {
-			node.setSize(node.getSize() + 1);
-			node = node.parent;
+	private void setRoot(AVLNode node) {
+		root = min = max = node;
+		if (!node.isRealNode())
+			return;
+		while (min.left.isRealNode())
+			min = min.left;
+		while (max.right.isRealNode())
+			max = max.right;
+	}
+
+	/**
+	 * combines the detached subtrees a and b by op. a's root is the pivot: b is
+	 * split around its key, both sides are combined recursively (in parallel when
+	 * they are big) and joined back with or without the pivot.
+	 */
+	// complexity: O(m log(n/m + 1))
+	private static AVLNode combine(int op, AVLNode a, AVLNode b, LongAdder ops) {
+		if (!a.isRealNode())
+			return op == UNION ? b : VIRTUAL_NODE;
+		if (!b.isRealNode())
+			return op == INTERSECTION ? VIRTUAL_NODE : a;
+		boolean parallel = a.size + b.size > PARALLEL_GRAIN;
+		AVLNode aLeft = a.left;
+		AVLNode aRight = a.right;
+		detach(aLeft);
+		detach(aRight);
+		Parts parts = splitNodes(b, a.key, ops);
+		AVLNode left;
+		AVLNode right;
+		if (parallel) {
+			SetTask task = new SetTask(op, aLeft, parts.left, ops);
+			task.fork();
+			right = combine(op, aRight, parts.right, ops);
+			left = task.join();
+		} else {
+			left = combine(op, aLeft, parts.left, ops);
+			right = combine(op, aRight, parts.right, ops);
+		}
+		// union keeps every pivot, intersection only the ones found in b and
+		// difference only the ones missing from b. a union of MultiAVLTrees
+		// keeps the items of both pivots.
+		if (op == UNION && parts.middle instanceof MultiNode)
+			((MultiNode) a).addAll((MultiNode) parts.middle);
+		boolean keep = op == UNION || (op == INTERSECTION) == (parts.middle != null);
+		return keep ? joinNodes(left, a, right, ops) : joinNodes(left, right, ops);
+	}
+
+	/**
+	 * sets keep[offset + j] to p.test of the j-th item of the subtree node, which
+	 * is not changed
+	 */
+	// complexity: O(n)
+	private static void test(AVLNode node, int offset, ItemPredicate p, boolean[] keep) {
+		if (!node.isRealNode())
+			return;
+		int index = offset + node.left.size;
+		if (node.size > PARALLEL_GRAIN) {
+			FilterTask task = new FilterTask(node.left, offset, p, keep);
+			task.fork();
+			test(node.right, index + 1, p, keep);
+			task.join();
+		} else {
+			test(node.left, offset, p, keep);
+			test(node.right, index + 1, p, keep);
+		}
+		keep[index] = p.test(node.key, node.info);
+	}
+
+	/**
+	 * returns the root of the items of the detached subtree node that test set
+	 * in keep, from keep[offset] on
+	 */
+	// complexity: O(n)
+	private static AVLNode filter(AVLNode node, int offset, boolean[] keep) {
+		if (!node.isRealNode())
+			return node;
+		AVLNode left = node.left;
+		AVLNode right = node.right;
+		int index = offset + left.size;
+		detach(left);
+		detach(right);
+		if (node.size > PARALLEL_GRAIN) {
+			FilterTask task = new FilterTask(left, offset, null, keep);
+			task.fork();
+			right = filter(right, index + 1, keep);
+			left = task.join();
+		} else {
+			left = filter(left, offset, keep);
+			right = filter(right, index + 1, keep);
 		}
+		return keep[index] ? joinNodes(left, node, right, null) : joinNodes(left, right, null);
 	}
 
 	/**
-	 * updates the sizes of the relevant nodes after deletion.
+	 * splits the detached subtree root around k. middle is the node with key k
+	 * made a single node, or null if k is not in the subtree. the rebalance
+	 * operations of the joins are added to ops unless it is null.
 	 */
 	// complexity: O(log n)
-	public void updateSizeAfterDelete(AVLNode node) {
-		while (node != null) {
-			node.setSize(node.getSize() - 1);
-			node = node.parent;
+	static Parts splitNodes(AVLNode root, int k, LongAdder ops) {
+		Parts parts = new Parts();
+		AVLNode left = VIRTUAL_NODE;
+		AVLNode right = VIRTUAL_NODE;
+		AVLNode node = root;
+		AVLNode parent = null;
+		int depth = 0;
+		while (node.isRealNode() && node.key != k) {
+			parent = node;
+			node = k < node.key ? node.left : node.right;
+			depth++;
+		}
+		parts.depth = node.isRealNode() ? depth : depth - 1;
+		if (node.isRealNode()) {
+			left = node.left;
+			right = node.right;
+			detach(left);
+			detach(right);
+			parent = node.parent;
+			node.left = node.right = VIRTUAL_NODE;
+			node.parent = null;
+			node.height = 0;
+			node.size = 1;
+			node.updateAggregate();
+			parts.middle = node;
+		}
+		while (parent != null) {
+			AVLNode next = parent.parent;
+			if (parent.key < k) {
+				AVLNode sub = parent.left;
+				detach(sub);
+				left = joinNodes(sub, parent, left, ops);
+			} else {
+				AVLNode sub = parent.right;
+				detach(sub);
+				right = joinNodes(right, parent, sub, ops);
+			}
+			parent = next;
 		}
+		parts.left = left;
+		parts.right = right;
+		return parts;
 	}
 
 	/**
-	 * Updates the min and max values after insertion.
+	 * joins the detached subtrees l and r (keys(l) < keys(r)) and returns the root
+	 * of the result
+	 */
+	// complexity: O(log n)
+	static AVLNode joinNodes(AVLNode l, AVLNode r, LongAdder ops) {
+		if (!l.isRealNode())
+			return r;
+		if (!r.isRealNode())
+			return l;
+		AVLNode last = l;
+		while (last.right.isRealNode())
+			last = last.right;
+		Parts parts = splitNodes(l, last.key, ops);
+		return joinNodes(parts.left, parts.middle, r, ops);
+	}
+
+	/**
+	 * joins the detached subtrees l and r with x in the middle (keys(l) < x.key <
+	 * keys(r)) and returns the root of the result. the rebalance operations are
+	 * added to ops unless it is null.
+	 */
+	// complexity: O(|l.height - r.height| + 1)
+	static AVLNode joinNodes(AVLNode l, AVLNode x, AVLNode r, LongAdder ops) {
+		if (l.height > r.height + 1)
+			return joinIntoRight(l, x, r, ops);
+		if (r.height > l.height + 1)
+			return joinIntoLeft(l, x, r, ops);
+		link(x, l, r);
+		x.parent = null;
+		return x;
+	}
+
+	/**
+	 * hangs x with the low tree r on the right spine of the higher tree l
+	 */
+	// complexity: O(l.height - r.height)
+	private static AVLNode joinIntoRight(AVLNode l, AVLNode x, AVLNode r, LongAdder ops) {
+		AVLNode p = null;
+		AVLNode c = l;
+		while (c.height > r.height + 1) {
+			p = c;
+			c = c.right;
+		}
+		link(x, c, r);
+		p.right = x;
+		x.parent = p;
+		for (AVLNode n = p; n != null; n = n.parent) {
+			n.size += 1 + r.size;
+			n.updateAggregate();
+		}
+		int operations = joinRebalance(p);
+		if (ops != null)
+			ops.add(operations);
+		return topOf(l);
+	}
+
+	/**
+	 * hangs x with the low tree l on the left spine of the higher tree r
+	 */
+	// complexity: O(r.height - l.height)
+	private static AVLNode joinIntoLeft(AVLNode l, AVLNode x, AVLNode r, LongAdder ops) {
+		AVLNode p = null;
+		AVLNode c = r;
+		while (c.height > l.height + 1) {
+			p = c;
+			c = c.left;
+		}
+		link(x, l, c);
+		p.left = x;
+		x.parent = p;
+		for (AVLNode n = p; n != null; n = n.parent) {
+			n.size += 1 + l.size;
+			n.updateAggregate();
+		}
+		int operations = joinRebalance(p);
+		if (ops != null)
+			ops.add(operations);
+		return topOf(r);
+	}
+
+	/**
+	 * makes l and r the sons of x and sets x's height, size and aggregate from
+	 * them
 	 */
 	// complexity: O(1)
-	public void updateMaxMinAfterInsert(AVLNode node) {
-		if (node.getKey() > this.max.getKey())
-			this.max = node;
-		if (node.getKey() < this.min.getKey())
-			this.min = node;
+	private static void link(AVLNode x, AVLNode l, AVLNode r) {
+		x.left = l;
+		x.right = r;
+		if (l.isRealNode())
+			l.parent = x;
+		if (r.isRealNode())
+			r.parent = x;
+		x.height = Math.max(l.height, r.height) + 1;
+		x.size = l.size + r.size + 1;
+		x.updateAggregate();
 	}
 
 	/**
-	 * Updates the min and max values after deletion.
+	 * cuts node from its parent, the parent keeps pointing to it
 	 */
-	// complexity: O(log n)
-	public void updateMaxMinAfterDelete(AVLNode node) {
-		if (this.min.getKey() == node.getKey())
-			this.min = successor(node);
-		if (this.max.getKey() == node.getKey())
-			this.max = predecessor(node);
+	// complexity: O(1)
+	private static void detach(AVLNode node) {
+		if (node.isRealNode())
+			node.parent = null;
 	}
 
 	/**
-	 * finds the predecessor of a given node
+	 * returns the root above node, node was a root before the rotations of a join
+	 */
+	// complexity: O(1)
+	private static AVLNode topOf(AVLNode node) {
+		while (node.parent != null)
+			node = node.parent;
+		return node;
+	}
+
+	/**
+	 * rebalancing of a detached subtree after a join hung a node under node. works
+	 * like insertRebalance, but a join can also leave a L1R1 son under a 0 edge,
+	 * and its rotation raises the subtree so the walk goes on. returns the amount
+	 * of rebalancing operations, counted like insertRebalance.
 	 */
 	// complexity: O(log n)
-	private AVLNode predecessor(AVLNode node) {
-		if (!node.left.isRealNode()) {
-			if (node.parent != null) {
-				return goUpRight(node);
+	private static int joinRebalance(AVLNode node) {
+		int operations = 0;
+		while (node != null) {
+			int edge = node.findEdges();
+			switch (edge) {
+			case L0R1:
+			case L1R0:
+				node.promote();
+				operations++;
+				node = node.parent;
+				break;
+			case L0R2:
+			case L2R0: {
+				boolean leftHeavy = edge == L0R2;
+				AVLNode son = leftHeavy ? node.left : node.right;
+				int sonEdge = son.findEdges();
+				if (sonEdge == L1R1) {
+					AVLTreeMetrics.singleRotation();
+					rotateUp(son);
+					son.promote();
+					operations += 2;
+					node = son.parent;
+				} else if (sonEdge == (leftHeavy ? L1R2 : L2R1)) {
+					AVLTreeMetrics.singleRotation();
+					rotateUp(son);
+					node.demote();
+					return operations + 2;
+				} else {
+					AVLTreeMetrics.doubleRotation();
+					AVLNode sonOfSon = leftHeavy ? son.right : son.left;
+					rotateUp(sonOfSon);
+					rotateUp(sonOfSon);
+					son.demote();
+					node.demote();
+					sonOfSon.promote();
+					return operations + 5;
+				}
+				break;
 			}
-			return VIRTUAL_NODE;
+			default:
+				return operations;
+			}
+		}
+		return operations;
+	}
+
+	/**
+	 * rotates node above its parent, a right rotation if node is a left son and a
+	 * left rotation otherwise. does not touch the tree's root.
+	 */
+	// complexity: O(1)
+	private static void rotateUp(AVLNode node) {
+		AVLNode parent = node.parent;
+		AVLNode grandParent = parent.parent;
+		node.parent = grandParent;
+		if (grandParent != null) {
+			if (grandParent.left == parent)
+				grandParent.left = node;
+			else
+				grandParent.right = node;
+		}
+		AVLNode inner;
+		if (parent.left == node) {
+			inner = node.right;
+			parent.left = inner;
+			node.right = parent;
+		} else {
+			inner = node.left;
+			parent.right = inner;
+			node.left = parent;
+		}
+		if (inner.isRealNode())
+			inner.parent = parent;
+		parent.parent = node;
+		parent.size = parent.left.size + parent.right.size + 1;
+		node.size = node.left.size + node.right.size + 1;
+		parent.updateAggregate();
+		node.updateAggregate();
+	}
+
+	/**
+	 * Rebalancing AVL tree after insert operation. returns the amount of
+	 * rebalancing operations.
+	 */
+	// complexity: O(log n)
+	public int insertRebalance(AVLNode rebalancedNode) {
+		int operations = 0;
+		while (rebalancedNode != null) {
+			int edge = rebalancedNode.findEdges();
+			switch (edge) {
+			case L0R1:
+			case L1R0:
+				rebalancedNode.promote();
+				operations++;
+				rebalancedNode = rebalancedNode.parent;
+				break;
+			case L0R2:
+				return operations + insertRebalanceL0R2(rebalancedNode);
+			case L2R0:
+				return operations + insertRebalanceL2R0(rebalancedNode);
+			default:
+				return operations;
+			}
+		}
+		return operations;
+	}
+
+	/**
+	 * Rebalance method for edge L0R2 returns the number of rebalance operations.
+	 */
+	// complexity: O(1)
+	private int insertRebalanceL0R2(AVLNode nodeToRebalnce) {
+		AVLNode child = nodeToRebalnce.left;
+		int edge = child.findEdges();
+		switch (edge) {
+		case L1R1:
+			AVLTreeMetrics.singleRotation();
+			nodeToRebalnce.promote();
+			rotate(true, child);
+			nodeToRebalnce.demote();
+			child.promote();
+			return 4;
+		case L1R2:
+			AVLTreeMetrics.singleRotation();
+			rotate(true, child);
+			nodeToRebalnce.demote();
+			return 2;
+		case L2R1:
+			AVLTreeMetrics.doubleRotation();
+			AVLNode rightChild = child.right;
+			rotate(false, rightChild);
+			rotate(true, rightChild);
+			child.demote();
+			nodeToRebalnce.demote();
+			rightChild.promote();
+			return 5;
+		default:
+			return 0;
+		}
+	}
+
+	/**
+	 * Rebalance method for edge L2R0. returns the number of rebalance operations.
+	 */
+	// complexity: O(1)
+	private int insertRebalanceL2R0(AVLNode nodeToRebalance) {
+		AVLNode child = nodeToRebalance.right;
+		int edge = child.findEdges();
+		switch (edge) {
+		case L1R1:
+			AVLTreeMetrics.singleRotation();
+			nodeToRebalance.promote();
+			rotate(false, child);
+			nodeToRebalance.demote();
+			child.promote();
+			return 4;
+		case L2R1:
+			AVLTreeMetrics.singleRotation();
+			rotate(false, child);
+			nodeToRebalance.demote();
+			return 2;
+		case L1R2:
+			AVLTreeMetrics.doubleRotation();
+			AVLNode leftChild = child.left;
+			rotate(true, leftChild);
+			rotate(false, leftChild);
+			child.demote();
+			nodeToRebalance.demote();
+			leftChild.promote();
+			return 5;
+		default:
+			return 0;
+		}
+	}
+
+	/**
+	 * checks the type of the delete that we need to use in order to delete the
+	 * given node
+	 */
+	// complexity: O(log n)
+	private AVLNode sortDelete(AVLNode node) {
+		int location = whereToPlace(node);
+		switch (location) {
+		case LEAF:
+			return deleteLeaf(node);
+		case INTERNAL:
+			return deleteInternalNode(node);
+		case UNARY_RIGHT:
+			return deleteUnaryNode(true, node);
+		case UNARY_LEFT:
+			return deleteUnaryNode(false, node);
+		default:
+			throw new RuntimeException();
+		}
+	}
+
+	/**
+	 * deletes an internal node
+	 */
+	// complexity: O(log n)
+	private AVLNode deleteInternalNode(AVLNode internalNode) {
+		AVLNode successor = successor(internalNode);
+		internalNode.takeItem(successor);
+		if (successor == this.max) {
+			this.max = internalNode;
+		}
+		return sortDelete(successor);
+	}
+
+	/**
+	 * deletes leaf
+	 */
+	// complexity: O(1)
+	private AVLNode deleteLeaf(AVLNode leaf) {
+		if (leaf == this.root)
+			root = min = max = VIRTUAL_NODE;
+		else
+			leaf.parent.setSon(leaf.getSide(), VIRTUAL_NODE);
+
+		return leaf.parent;
+	}
+
+	/**
+	 * deletes unary node
+	 */
+	// complexity: O(1)
+	private AVLNode deleteUnaryNode(boolean side, AVLNode unaryNode) {
+		AVLNode son = getUnarySon(unaryNode);
+		son.parent = unaryNode.parent;
+
+		if (unaryNode == this.root)
+			this.root = son;
+		else
+			unaryNode.parent.setSon(unaryNode.getSide(), son);
+
+		return unaryNode.parent;
+	}
+
+	/**
+	 * Rebalancing the tree after the deletion of a node. returns the amount of
+	 * rebalancing operations.
+	 */
+	// complexity: O(log n)
+	private int deleteRebalance(AVLNode rebalanceNode) {
+		int operations = 0;
+		while (rebalanceNode != null) {
+			int edge = rebalanceNode.findEdges();
+			switch (edge) {
+			case L2R2:
+				rebalanceNode.demote();
+				operations++;
+				rebalanceNode = rebalanceNode.parent;
+				break;
+			case L1R3: {
+				AVLNode son = rebalanceNode.left;
+				switch (son.findEdges()) {
+				case L1R1:
+					AVLTreeMetrics.singleRotation();
+					rotate(true, son);
+					rebalanceNode.demote();
+					son.promote();
+					return operations + 3;
+				case L2R1:
+					AVLTreeMetrics.doubleRotation();
+					AVLNode sonOfSon = son.right;
+					rotate(false, sonOfSon);
+					rotate(true, sonOfSon);
+					sonOfSon.promote();
+					rebalanceNode.demote();
+					rebalanceNode.demote();
+					son.demote();
+					operations += 6;
+					rebalanceNode = sonOfSon.parent;
+					break;
+				case L1R2:
+					AVLTreeMetrics.singleRotation();
+					rotate(true, son);
+					rebalanceNode.demote();
+					rebalanceNode.demote();
+					operations += 3;
+					rebalanceNode = son.parent;
+					break;
+				default:
+					return operations;
+				}
+				break;
+			}
+			case L3R1: {
+				AVLNode son = rebalanceNode.right;
+				switch (son.findEdges()) {
+				case L1R1:
+					AVLTreeMetrics.singleRotation();
+					rotate(false, son);
+					rebalanceNode.demote();
+					son.promote();
+					return operations + 3;
+				case L1R2:
+					AVLTreeMetrics.doubleRotation();
+					AVLNode sonOfSon = son.left;
+					rotate(true, sonOfSon);
+					rotate(false, sonOfSon);
+					sonOfSon.promote();
+					rebalanceNode.demote();
+					rebalanceNode.demote();
+					son.demote();
+					operations += 6;
+					rebalanceNode = sonOfSon.parent;
+					break;
+				case L2R1:
+					AVLTreeMetrics.singleRotation();
+					rotate(false, son);
+					rebalanceNode.demote();
+					rebalanceNode.demote();
+					operations += 3;
+					rebalanceNode = son.parent;
+					break;
+				default:
+					return operations;
+				}
+				break;
+			}
+			default:
+				return operations;
+			}
+		}
+		return operations;
+	}
+
+	/**
+	 * updates the sizes and aggregates of the relevant nodes after insertion.
+	 */
+	// complexity: O(log n)
+	public void updateSizeAfterInsert(AVLNode node) {
+		while (node != null) {
+			node.setSize(node.getSize() + 1);
+			node.updateAggregate();
+			node = node.parent;
+		}
+	}
+
+	/**
+	 * updates the sizes and aggregates of the relevant nodes after deletion.
+	 */
+	// complexity: O(log n)
+	public void updateSizeAfterDelete(AVLNode node) {
+		while (node != null) {
+			node.setSize(node.getSize() - 1);
+			node.updateAggregate();
+			node = node.parent;
+		}
+	}
+
+	/**
+	 * Updates the min and max values after insertion.
+	 */
+	// complexity: O(1)
+	public void updateMaxMinAfterInsert(AVLNode node) {
+		if (node.getKey() > this.max.getKey())
+			this.max = node;
+		if (node.getKey() < this.min.getKey())
+			this.min = node;
+	}
+
+	/**
+	 * Updates the min and max values after deletion.
+	 */
+	// complexity: O(log n)
+	public void updateMaxMinAfterDelete(AVLNode node) {
+		if (this.min.getKey() == node.getKey())
+			this.min = successor(node);
+		if (this.max.getKey() == node.getKey())
+			this.max = predecessor(node);
+	}
+
+	/**
+	 * finds the predecessor of a given node
+	 */
+	// complexity: O(log n)
+	private AVLNode predecessor(AVLNode node) {
+		if (!node.left.isRealNode()) {
+			if (node.parent != null) {
+				return goUpRight(node);
+			}
+			return VIRTUAL_NODE;
 		} else {
 			return goDownRight(node.left);
 		}
 	}
 
 	/**
-	 * finds the successor of a given node
+	 * finds the successor of a given node
+	 */
+	// complexity: O(log n)
+	private AVLNode successor(AVLNode node) {
+		if (node.right.isRealNode() == false) {
+			if (node.parent != null) {
+				return goUpLeft(node);
+			}
+			return VIRTUAL_NODE;
+		} else {
+			return goDownLeft(node.right);
+		}
+	}
+
+	/**
+	 * returns the predecessor of node if node.left is not real, VIRTUAL_NODE if
+	 * node is the minimum
+	 */
+	// complexity: O(log n)
+	private AVLNode goUpRight(AVLNode node) {
+		while (node.parent != null && node.parent.left == node)
+			node = node.parent;
+		return node.parent != null ? node.parent : VIRTUAL_NODE;
+	}
+
+	/**
+	 * find the lowest right node for node
+	 */
+	// complexity: O(log n)
+	private AVLNode goDownRight(AVLNode node) {
+		while (node.right.isRealNode())
+			node = node.right;
+		return node;
+	}
+
+	/**
+	 * returns the successor of node if node.right is not real, VIRTUAL_NODE if
+	 * node is the maximum
+	 */
+	// complexity: O(log n)
+	private AVLNode goUpLeft(AVLNode node) {
+		while (node.parent != null && node.parent.right == node)
+			node = node.parent;
+		return node.parent != null ? node.parent : VIRTUAL_NODE;
+	}
+
+	/**
+	 * finds the lowest left node for node
+	 */
+	// complexity: O(log n)
+	private AVLNode goDownLeft(AVLNode node) {
+		while (node.left.isRealNode())
+			node = node.left;
+		return node;
+	}
+
+	/**
+	 * checks if the current node is a leaf, internal node or unary node.
+	 */
+	// complexity: O(1)
+	private int whereToPlace(IAVLNode node) {
+		if (node.getLeft().isRealNode()) {
+			if (node.getRight().isRealNode() == true) {
+				return INTERNAL;
+			} else {
+				return UNARY_LEFT;
+			}
+		} else if (node.getRight().isRealNode()) {
+			return UNARY_RIGHT;
+		} else {
+			return LEAF;
+		}
+	}
+
+	/**
+	 * checks which side to rotate.
+	 */
+	// complexity: O(1)
+	private void rotate(boolean side, AVLNode rotatedNode) {
+		if (side == true) {
+			rotateRight(rotatedNode);
+		} else {
+			rotateLeft(rotatedNode);
+		}
+	}
+
+	/**
+	 * rotates right the cross section of rotatedNode
+	 */
+	// complexity: O(1)
+	private void rotateRight(AVLNode rotatedNode) {
+		AVLNode A = rotatedNode.parent;
+		AVLNode B = rotatedNode;
+		AVLNode C = A.right;
+		AVLNode x = B.left;
+		AVLNode y = B.right;
+		if (A == root) {
+			root = B;
+		} else {
+			A.parent.setSon(A.getSide(), B);
+		}
+		B.right = A;
+		B.parent = A.parent;
+		A.left = y;
+		updateSizesAfterRotation(A, B, C, x, y);
+
+	}
+
+	/**
+	 * rotates left the cross section of rotatedNode
+	 */
+	// complexity: O(1)
+	private void rotateLeft(AVLNode rotatedNode) {
+		AVLNode A = rotatedNode.parent;
+		AVLNode B = rotatedNode;
+		AVLNode C = A.left;
+		AVLNode x = B.right;
+		AVLNode y = B.left;
+		if (A == root) {
+			root = B;
+		} else {
+			A.parent.setSon(A.getSide(), B);
+		}
+		B.left = A;
+		B.parent = A.parent;
+		A.right = y;
+		if (y.isRealNode())
+			y.parent = A;
+		updateSizesAfterRotation(A, B, C, x, y);
+
+	}
+
+	/**
+	 * updates the sizes, aggregates and the parents of the nodes after the
+	 * rotation
+	 */
+	// complexity: O(1)
+	private void updateSizesAfterRotation(AVLNode z, AVLNode x, AVLNode y, AVLNode a, AVLNode b) {
+		z.parent = x;
+		if (b.isRealNode())
+			b.parent = z;
+		z.size = b.size + y.size + 1;
+		x.size = z.size + a.size + 1;
+		z.updateAggregate();
+		x.updateAggregate();
+	}
+
+	/**
+	 * given an unary node, the function returns its only child
+	 */
+	// complexity: O(1)
+	private AVLNode getUnarySon(AVLNode unaryNode) {
+		if (unaryNode.left.isRealNode() == true)
+			return unaryNode.left;
+		else
+			return unaryNode.right;
+	}
+
+	/**
+	 * Collects items in increasing key order for fromSorted. add() rejects a key
+	 * that is not larger than the previous one.
+	 */
+	public static class Builder {
+
+		private int[] keys = new int[16];
+		private String[] infos = new String[16];
+		private int count;
+
+		// complexity: O(1)
+		Builder() {
+		}
+
+		/**
+		 * adds the item (k, i), k must be larger than every key added before
+		 */
+		// complexity: O(1) amortized
+		public Builder add(int k, String i) {
+			if (count > 0 && keys[count - 1] >= k)
+				throw new IllegalArgumentException("key " + k + " added after " + keys[count - 1]);
+			if (count == keys.length) {
+				keys = Arrays.copyOf(keys, count * 2);
+				infos = Arrays.copyOf(infos, count * 2);
+			}
+			keys[count] = k;
+			infos[count] = i;
+			count++;
+			return this;
+		}
+
+		/**
+		 * returns a balanced tree of the items added so far
+		 */
+		// complexity: O(n)
+		public AVLTree build() {
+			return fromSorted(keys, infos, count);
+		}
+	}
+
+	/**
+	 * A condition on an item, used by filter.
+	 */
+	public interface ItemPredicate {
+		boolean test(int key, String info);
+	}
+
+	/**
+	 * An aggregate of items kept in every subtree: lift turns an item into a
+	 * value and combine puts two values together. combine must be associative
+	 * with identity as its neutral element, it does not have to be commutative,
+	 * the items are always combined in increasing key order.
+	 */
+	public interface Aggregator {
+
+		long identity();
+
+		long lift(int key, String info);
+
+		long combine(long a, long b);
+
+		/**
+		 * returns an aggregator of the sum of value(info)
+		 */
+		// complexity: O(1)
+		static Aggregator sum(ToLongFunction<String> value) {
+			return new Aggregator() {
+				public long identity() {
+					return 0;
+				}
+
+				public long lift(int key, String info) {
+					return value.applyAsLong(info);
+				}
+
+				public long combine(long a, long b) {
+					return a + b;
+				}
+			};
+		}
+
+		/**
+		 * returns an aggregator of the smallest value(info), Long.MAX_VALUE for no
+		 * items
+		 */
+		// complexity: O(1)
+		static Aggregator min(ToLongFunction<String> value) {
+			return new Aggregator() {
+				public long identity() {
+					return Long.MAX_VALUE;
+				}
+
+				public long lift(int key, String info) {
+					return value.applyAsLong(info);
+				}
+
+				public long combine(long a, long b) {
+					return Math.min(a, b);
+				}
+			};
+		}
+
+		/**
+		 * returns an aggregator of the largest value(info), Long.MIN_VALUE for no
+		 * items
+		 */
+		// complexity: O(1)
+		static Aggregator max(ToLongFunction<String> value) {
+			return new Aggregator() {
+				public long identity() {
+					return Long.MIN_VALUE;
+				}
+
+				public long lift(int key, String info) {
+					return value.applyAsLong(info);
+				}
+
+				public long combine(long a, long b) {
+					return Math.max(a, b);
+				}
+			};
+		}
+	}
+
+	/**
+	 * The result of splitNodes: the subtrees below and above the split key and the
+	 * node with the key itself, or null. depth is the number of edges from the
+	 * root to the last node of the search for the key.
+	 */
+	static final class Parts {
+		AVLNode left;
+		AVLNode middle;
+		AVLNode right;
+		int depth;
+	}
+
+	/**
+	 * One half of a union, intersection or difference that runs on the
+	 * ForkJoinPool.
+	 */
+	private static final class SetTask extends RecursiveTask<AVLNode> {
+
+		private static final long serialVersionUID = 1L;
+		private final int op;
+		private final AVLNode a;
+		private final AVLNode b;
+		private final LongAdder ops;
+
+		// complexity: O(1)
+		SetTask(int op, AVLNode a, AVLNode b, LongAdder ops) {
+			this.op = op;
+			this.a = a;
+			this.b = b;
+			this.ops = ops;
+		}
+
+		@Override
+		protected AVLNode compute() {
+			return combine(op, a, b, ops);
+		}
+	}
+
+	/**
+	 * One half of a filter that runs on the ForkJoinPool: it tests the items of
+	 * the subtree node with predicate, or rebuilds the subtree from keep when
+	 * predicate is null.
+	 */
+	private static final class FilterTask extends RecursiveTask<AVLNode> {
+
+		private static final long serialVersionUID = 1L;
+		private final AVLNode node;
+		private final int offset;
+		private final ItemPredicate predicate;
+		private final boolean[] keep;
+
+		// complexity: O(1)
+		FilterTask(AVLNode node, int offset, ItemPredicate predicate, boolean[] keep) {
+			this.node = node;
+			this.offset = offset;
+			this.predicate = predicate;
+			this.keep = keep;
+		}
+
+		@Override
+		protected AVLNode compute() {
+			if (predicate == null)
+				return filter(node, offset, keep);
+			test(node, offset, predicate, keep);
+			return null;
+		}
+	}
+
+	/**
+	 * What insertAll or deleteAll did: how many keys the batch had, how many items
+	 * were inserted or deleted, and how many rebalancing operations it took,
+	 * counted like insert and delete.
+	 */
+	public static final class BatchStats {
+
+		private final int batchSize;
+		private final int applied;
+		private final long rebalanceOperations;
+
+		// complexity: O(1)
+		BatchStats(int batchSize, int applied, long rebalanceOperations) {
+			this.batchSize = batchSize;
+			this.applied = applied;
+			this.rebalanceOperations = rebalanceOperations;
+		}
+
+		// complexity: O(1)
+		public int getBatchSize() {
+			return batchSize;
+		}
+
+		// complexity: O(1)
+		public int getApplied() {
+			return applied;
+		}
+
+		// keys that were already in the tree (insertAll) or missing from it
+		// (deleteAll), or repeated in the batch
+		// complexity: O(1)
+		public int getSkipped() {
+			return batchSize - applied;
+		}
+
+		// complexity: O(1)
+		public long getRebalanceOperations() {
+			return rebalanceOperations;
+		}
+
+		// complexity: O(1)
+		@Override
+		public String toString() {
+			return "BatchStats[batch=" + batchSize + ", applied=" + applied + ", skipped=" + getSkipped()
+					+ ", rebalanceOperations=" + rebalanceOperations + "]";
+		}
+	}
+
+	/**
+	 * The result of partition: the trees of the keys below and above the split
+	 * key, and the node of the split key or null if it was not in the tree.
+	 */
+	public static final class Partition {
+
+		private final AVLTree left;
+		private final AVLNode middle;
+		private final AVLTree right;
+
+		// complexity: O(1)
+		Partition(AVLTree left, AVLNode middle, AVLTree right) {
+			this.left = left;
+			this.middle = middle;
+			this.right = right;
+		}
+
+		// complexity: O(1)
+		public AVLTree getLeft() {
+			return left;
+		}
+
+		// complexity: O(1)
+		public IAVLNode getMiddle() {
+			return middle;
+		}
+
+		// complexity: O(1)
+		public AVLTree getRight() {
+			return right;
+		}
+	}
+
+	/**
+	 * Buffers the writes of writeTo to one region of the file, which starts at
+	 * position and grows as the buffer is flushed.
+	 */
+	private static final class RegionWriter {
+
+		final FileChannel channel;
+		final ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+		long position;
+
+		// complexity: O(1)
+		RegionWriter(FileChannel channel, long position) {
+			this.channel = channel;
+			this.position = position;
+		}
+
+		/**
+		 * returns the buffer with room for bytes more, flushing it if needed
+		 */
+		// complexity: O(1) amortized
+		ByteBuffer reserve(int bytes) throws IOException {
+			if (buffer.remaining() < bytes)
+				flush();
+			return buffer;
+		}
+
+		// complexity: O(bytes.length) amortized
+		void write(byte[] bytes) throws IOException {
+			if (bytes.length <= buffer.capacity()) {
+				reserve(bytes.length).put(bytes);
+				return;
+			}
+			flush();
+			ByteBuffer wrapped = ByteBuffer.wrap(bytes);
+			while (wrapped.hasRemaining())
+				position += channel.write(wrapped, position);
+		}
+
+		// complexity: O(buffer size)
+		void flush() throws IOException {
+			buffer.flip();
+			while (buffer.hasRemaining())
+				position += channel.write(buffer, position);
+			buffer.clear();
+		}
+	}
+
+	/**
+	 * A position in the tree that moves to the next or previous key in O(1)
+	 * amortized time without allocating. Any insert, delete, split or join of the
+	 * tree after the cursor was made invalidates it, and the next use throws
+	 * ConcurrentModificationException.
+	 */
+	public class Cursor {
+
+		private AVLNode node;
+		private final int expectedModCount;
+
+		// complexity: O(1)
+		Cursor(AVLNode node) {
+			this.node = node;
+			this.expectedModCount = modCount;
+		}
+
+		// complexity: O(1)
+		public boolean isValid() {
+			checkForComodification();
+			return node != VIRTUAL_NODE;
+		}
+
+		// complexity: O(1)
+		public int key() {
+			return current().key;
+		}
+
+		// complexity: O(1)
+		public String info() {
+			return current().info;
+		}
+
+		/**
+		 * moves to the next key, returns false if there is none
+		 */
+		// complexity: O(1) amortized
+		public boolean next() {
+			node = successor(current());
+			return node != VIRTUAL_NODE;
+		}
+
+		/**
+		 * moves to the previous key, returns false if there is none
+		 */
+		// complexity: O(1) amortized
+		public boolean previous() {
+			node = predecessor(current());
+			return node != VIRTUAL_NODE;
+		}
+
+		// complexity: O(1)
+		private AVLNode current() {
+			if (!isValid())
+				throw new NoSuchElementException();
+			return node;
+		}
+
+		// complexity: O(1)
+		private void checkForComodification() {
+			if (modCount != expectedModCount)
+				throw new ConcurrentModificationException();
+		}
+	}
+
+	/**
+	 * A remembered position in the tree that search, insert and delete can start
+	 * from instead of the root. They go up from the finger to the lowest ancestor
+	 * whose subtree can hold the key and down from there, then leave the finger
+	 * on the node they stopped at. A key near the previous one costs the height
+	 * of their lowest common ancestor, which for a sweep in key order is O(1)
+	 * amortized. Keys past max or before min are found in O(1).
+	 *
+	 * A finger keeps the modCount it last saw. If the tree was changed by
+	 * anything else since, its node may be gone, and the next operation starts
+	 * from the root instead.
 	 */
-	// complexity: O(log n)
-	private AVLNode successor(AVLNode node) {
-		if (node.right.isRealNode() == false) {
-			if (node.parent != null) {
-				return goUpLeft(node);
-			}
-			return VIRTUAL_NODE;
-		} else {
-			return goDownLeft(node.right);
+	public class Finger {
+
+		private AVLNode node;
+		private int expectedModCount;
+
+		// complexity: O(1)
+		Finger(AVLNode node) {
+			moveTo(node);
 		}
-	}
 
-	/**
-	 * returns the predecessor of node if node.left is not real
-	 */
-	// complexity: O(log n)
-	private AVLNode goUpRight(AVLNode node) {
-		if (node.parent.left == node) {
-			return goUpRight(node.parent);
-		} else {
-			return node.parent;
+		/**
+		 * returns true if the finger is on a node and the tree was not changed
+		 * except through this finger since it got there
+		 */
+		// complexity: O(1)
+		public boolean isValid() {
+			return modCount == expectedModCount && node.isRealNode();
 		}
-	}
 
-	/**
-	 * find the lowest right node for node
-	 */
-	// complexity: O(log n)
-	private AVLNode goDownRight(AVLNode node) {
-		if (!node.right.isRealNode()) {
-			return node;
-		} else {
-			return goDownRight(node.right);
+		// complexity: O(1)
+		public int key() {
+			return current().key;
 		}
-	}
 
-	/**
-	 * returns the successor of node if node.right is not real
-	 */
-	// complexity: O(log n)
-	private AVLNode goUpLeft(AVLNode node) {
-		if (node.parent.right == node) {
-			return goUpLeft(node.parent);
-		} else {
-			return node.parent;
+		// complexity: O(1)
+		public String info() {
+			return current().info;
 		}
-	}
 
-	/**
-	 * finds the lowest left node for node
-	 */
-	// complexity: O(log n)
-	private AVLNode goDownLeft(AVLNode node) {
-		if (!node.left.isRealNode()) {
-			return node;
-		} else {
-			return goDownLeft(node.left);
+		/**
+		 * returns the info of the item with key k, or null if there is none, and
+		 * moves the finger to the last node seen looking for it
+		 */
+		// complexity: O(log d), d the distance from the finger in the typical case
+		public String search(int k) {
+			AVLNode found = position(k);
+			moveTo(found);
+			return found.isRealNode() && found.key == k ? found.info : null;
 		}
-	}
 
-	/**
-	 * checks if the current node is a leaf, internal node or unary node.
-	 */
-	// complexity: O(1)
-	private String whereToPlace(IAVLNode node) {
-		if (node.getLeft().isRealNode()) {
-			if (node.getRight().isRealNode() == true) {
-				return "INTERNAL";
-			} else {
-				return "UNARY_LEFT";
+		/**
+		 * inserts (k, i) like AVLTree.insert and moves the finger to the node of k
+		 */
+		// complexity: O(log d) to find the place, O(log n) to update sizes
+		public int insert(int k, String i) {
+			if (empty()) {
+				int operations = AVLTree.this.insert(k, i);
+				moveTo(root);
+				return operations;
 			}
-		} else if (node.getRight().isRealNode()) {
-			return "UNARY_RIGHT";
-		} else {
-			return "LEAF";
+			AVLNode insertAfter = position(k);
+			if (insertAfter.key == k) {
+				moveTo(insertAfter);
+				return insertExisting(insertAfter, i);
+			}
+			modCount++;
+			AVLNode insertedNode = newNode(k, i, insertAfter, aggregator);
+			int operations = attach(insertAfter, insertedNode);
+			moveTo(insertedNode);
+			return operations;
 		}
-	}
 
-	/**
-	 * checks which side to rotate.
-	 */
-	// complexity: O(1)
-	private void rotate(boolean side, AVLNode rotatedNode) {
-		if (side == true) {
-			rotateRight(rotatedNode);
-		} else {
-			rotateLeft(rotatedNode);
+		/**
+		 * deletes k like AVLTree.delete and moves the finger to the node before it,
+		 * or after it if k was the smallest key
+		 */
+		// complexity: O(log d) to find the node, O(log n) to update sizes
+		public int delete(int k) {
+			if (empty())
+				return -1;
+			AVLNode toDeleteNode = position(k);
+			if (toDeleteNode.key != k) {
+				moveTo(toDeleteNode);
+				return -1;
+			}
+			// remove() only moves the item of the successor of a node with two
+			// sons, the predecessor node stays where it is
+			AVLNode next = predecessor(toDeleteNode);
+			if (!next.isRealNode())
+				next = successor(toDeleteNode);
+			int expected = modCount;
+			int operations = deleteExisting(toDeleteNode);
+			// a MultiAVLTree keeps the node while it has items left
+			moveTo(modCount == expected ? toDeleteNode : next);
+			return operations;
 		}
-	}
 
-	/**
-	 * rotates right the cross section of rotatedNode
-	 */
-	// complexity: O(1)
-	private void rotateRight(AVLNode rotatedNode) {
-		AVLNode A = rotatedNode.parent;
-		AVLNode B = rotatedNode;
-		AVLNode C = A.right;
-		AVLNode x = B.left;
-		AVLNode y = B.right;
-		if (A == root) {
-			root = B;
-		} else {
-			A.parent.setSon(A.getSide(), B);
+		// complexity: O(log d)
+		private AVLNode position(int k) {
+			return fingerPosition(modCount == expectedModCount ? node : root, k);
+		}
+
+		// complexity: O(1)
+		private void moveTo(AVLNode node) {
+			this.node = node;
+			this.expectedModCount = modCount;
 		}
-		B.right = A;
-		B.parent = A.parent;
-		A.left = y;
-		updateSizesAfterRotation(A, B, C, x, y);
 
+		// complexity: O(1)
+		private AVLNode current() {
+			if (!isValid())
+				throw new NoSuchElementException();
+			return node;
+		}
 	}
 
 	/**
-	 * rotates left the cross section of rotatedNode
+	 * Spliterator over the keys in [lo, hi). It finds its first node only when
+	 * it starts, so splitting before that only moves the bounds.
 	 */
-	// complexity: O(1)
-	private void rotateLeft(AVLNode rotatedNode) {
-		AVLNode A = rotatedNode.parent;
-		AVLNode B = rotatedNode;
-		AVLNode C = A.left;
-		AVLNode x = B.right;
-		AVLNode y = B.left;
-		if (A == root) {
-			root = B;
-		} else {
-			A.parent.setSon(A.getSide(), B);
+	private class KeySpliterator implements Spliterator.OfInt {
+
+		private int lo;
+		private final int hi;
+		private AVLNode node; // next node to visit, null before the start
+		private long remaining; // nodes left, one per key
+		private final int expectedModCount;
+
+		// counts nodes with countBelow, not rank, which counts items in a
+		// MultiAVLTree while the walk visits one node per key
+		// complexity: O(log n)
+		KeySpliterator(int lo, int hi) {
+			this.lo = lo;
+			this.hi = hi;
+			this.remaining = lo < hi ? countBelow(hi, false) - countBelow(lo, false) : 0;
+			this.expectedModCount = modCount;
+		}
+
+		// complexity: O(1) amortized
+		public boolean tryAdvance(IntConsumer action) {
+			if (remaining == 0)
+				return false;
+			if (modCount != expectedModCount)
+				throw new ConcurrentModificationException();
+			if (node == null)
+				node = ceilingNode(lo);
+			if (!node.isRealNode()) {
+				remaining = 0;
+				return false;
+			}
+			int key = node.key;
+			node = successor(node);
+			remaining--;
+			action.accept(key);
+			return true;
+		}
+
+		// complexity: O(m) for the m remaining keys
+		public void forEachRemaining(IntConsumer action) {
+			if (remaining == 0)
+				return;
+			if (modCount != expectedModCount)
+				throw new ConcurrentModificationException();
+			if (node == null)
+				node = ceilingNode(lo);
+			for (; remaining > 0 && node.isRealNode(); remaining--) {
+				int key = node.key;
+				node = successor(node);
+				action.accept(key);
+				if (modCount != expectedModCount)
+					throw new ConcurrentModificationException();
+			}
+			remaining = 0;
 		}
-		B.left = A;
-		B.parent = A.parent;
-		A.right = y;
-		y.parent = A;
-		updateSizesAfterRotation(A, B, C, x, y);
 
-	}
+		// complexity: O(log n)
+		public Spliterator.OfInt trySplit() {
+			if (node != null || remaining < 2)
+				return null;
+			if (modCount != expectedModCount)
+				throw new ConcurrentModificationException();
+			int start = countBelow(lo, false);
+			int mid = selectNode(start + (int) (remaining / 2)).key;
+			KeySpliterator prefix = new KeySpliterator(lo, mid);
+			lo = mid;
+			remaining -= prefix.remaining;
+			return prefix;
+		}
 
-	/**
-	 * updates the sizes and the parents of the nodes after the rotation
-	 */
-	// complexity: O(1)
-	private void updateSizesAfterRotation(AVLNode z, AVLNode x, AVLNode y, AVLNode a, AVLNode b) {
-		z.parent = x;
-		b.parent = z;
-		z.size = b.size + y.size + 1;
-		x.size = z.size + a.size + 1;
-	}
+		// complexity: O(1)
+		public long estimateSize() {
+			return remaining;
+		}
 
-	/**
-	 * given an unary node, the function returns its only child
-	 */
-	// complexity: O(1)
-	private AVLNode getUnarySon(AVLNode unaryNode) {
-		if (unaryNode.left.isRealNode() == true)
-			return unaryNode.left;
-		else
-			return unaryNode.right;
+		// complexity: O(1)
+		public int characteristics() {
+			return ORDERED | SORTED | DISTINCT | NONNULL | SIZED | SUBSIZED;
+		}
+
+		// complexity: O(1)
+		public Comparator<? super Integer> getComparator() {
+			return null;
+		}
 	}
 
 	/** IAVLNode INTERFACE */
@@ -994,7 +2728,7 @@ public class AVLTree {
 	}
 
 	/** AVLNode CLASS */
-	public class AVLNode implements IAVLNode {
+	public static class AVLNode implements IAVLNode {
 
 		private int key; // key of node
 		private String info; // value of node
@@ -1004,7 +2738,7 @@ public class AVLTree {
 		AVLNode left; // left subtree
 		AVLNode right; // right subtree
 
-		// AVLNode empty constructor
+		// AVLNode empty constructor, only used for VirtualNode
 		// complexity: O(1)
 		private AVLNode() {
 			this.height = -1;
@@ -1019,8 +2753,8 @@ public class AVLTree {
 			this.height = 0;
 			this.size = 1;
 			this.parent = parent;
-			this.right = new AVLNode();
-			this.left = new AVLNode();
+			this.right = VIRTUAL_NODE;
+			this.left = VIRTUAL_NODE;
 		}
 
 		// AVLNode methods
@@ -1075,9 +2809,10 @@ public class AVLTree {
 			return parent;
 		}
 
+		// virtual nodes are recognized by identity, so -1 is a valid key
 		// complexity: O(1)
 		public boolean isRealNode() {
-			return (this.getKey() != -1);
+			return this != VIRTUAL_NODE;
 		}
 
 		// complexity: O(1)
@@ -1102,11 +2837,13 @@ public class AVLTree {
 
 		// complexity: O(1)
 		public void promote() {
+			AVLTreeMetrics.promotion();
 			this.height++;
 		}
 
 		// complexity: O(1)
 		public void demote() {
+			AVLTreeMetrics.demotion();
 			this.height--;
 		}
 
@@ -1129,14 +2866,238 @@ public class AVLTree {
 		}
 
 		/**
-		 * check the edges between the current node and its sons
+		 * makes the item of node the item of this node, used by delete to move up a
+		 * successor
+		 */
+		// complexity: O(1)
+		void takeItem(AVLNode node) {
+			setValue(node.info);
+			setKey(node.key);
+		}
+
+		/**
+		 * recomputes the aggregate of the subtree from the sons, nothing to do in a
+		 * tree without an aggregator
+		 */
+		// complexity: O(1)
+		void updateAggregate() {
+		}
+
+		/**
+		 * check the edges between the current node and its sons, returns one of the
+		 * edge codes (L0R1, L1R1, ...) or NO_EDGE
+		 */
+		// complexity: O(1)
+		public int findEdges() {
+			int deltaLeft = this.height - this.left.height;
+			int deltaRight = this.height - this.right.height;
+			if (((deltaLeft | deltaRight) & ~3) != 0)
+				return NO_EDGE;
+			return (deltaLeft << 2) | deltaRight;
+		}
+	}
+
+	/**
+	 * A node of a tree with an aggregator. value is the item lifted, aggregate
+	 * the combination of the values of the subtree in key order. Changing the key
+	 * or info lifts the item again, the aggregates above are up to the caller.
+	 */
+	static class AggregateNode extends AVLNode {
+
+		final Aggregator aggregator;
+		long value;
+		long aggregate;
+
+		// AggregateNode constructor
+		// complexity: O(1)
+		AggregateNode(int key, String info, AVLNode parent, Aggregator aggregator) {
+			super(key, info, parent);
+			this.aggregator = aggregator;
+			this.value = aggregator.lift(key, info);
+			this.aggregate = value;
+		}
+
+		// complexity: O(1)
+		@Override
+		public void setKey(int key) {
+			super.setKey(key);
+			lift();
+		}
+
+		// complexity: O(1)
+		@Override
+		public void setValue(String info) {
+			super.setValue(info);
+			lift();
+		}
+
+		// complexity: O(1)
+		void lift() {
+			value = aggregator.lift(getKey(), getValue());
+		}
+
+		// complexity: O(1)
+		@Override
+		void updateAggregate() {
+			long sum = value;
+			if (left.isRealNode())
+				sum = aggregator.combine(((AggregateNode) left).aggregate, sum);
+			if (right.isRealNode())
+				sum = aggregator.combine(sum, ((AggregateNode) right).aggregate);
+			aggregate = sum;
+		}
+	}
+
+	/**
+	 * A node of a MultiAVLTree: all the items with one key. info is the first of
+	 * them and more holds the others in the order they came, value is their
+	 * number and aggregate the number of items in the subtree.
+	 */
+	static final class MultiNode extends AggregateNode {
+
+		String[] more;
+
+		// MultiNode constructor, a node with a single item
+		// complexity: O(1)
+		MultiNode(int key, String info, AVLNode parent) {
+			super(key, info, parent, MULTIPLICITY);
+		}
+
+		// the number of items does not depend on the key or the first info
+		// complexity: O(1)
+		@Override
+		void lift() {
+		}
+
+		// complexity: O(1)
+		@Override
+		void takeItem(AVLNode node) {
+			super.takeItem(node);
+			more = ((MultiNode) node).more;
+			value = ((MultiNode) node).value;
+		}
+
+		/**
+		 * adds info after the items of the node, the aggregates above are up to
+		 * the caller
+		 */
+		// complexity: O(1) amortized
+		void add(String info) {
+			int count = (int) value;
+			if (more == null)
+				more = new String[2];
+			else if (count - 1 == more.length)
+				more = Arrays.copyOf(more, more.length * 2);
+			more[count - 1] = info;
+			value++;
+		}
+
+		/**
+		 * adds the items of node after the items of this node, the aggregates
+		 * above are up to the caller
+		 */
+		// complexity: O(node.value) amortized
+		void addAll(MultiNode node) {
+			add(node.getValue());
+			for (int j = 0; j < node.value - 1; j++)
+				add(node.more[j]);
+		}
+
+		/**
+		 * removes the last item of a node with more than one, the aggregates above
+		 * are up to the caller
 		 */
 		// complexity: O(1)
-		public String findEdges() {
-			int deltaLeft = this.height - this.getLeft().getHeight();
-			int deltaRight = this.height - this.getRight().getHeight();
-			String st = "L" + deltaLeft + "R" + deltaRight;
-			return st;
+		void removeLast() {
+			int count = (int) value;
+			more[count - 2] = null;
+			value--;
+		}
+
+		// complexity: O(value)
+		String[] infos() {
+			String[] infos = new String[(int) value];
+			infos[0] = getValue();
+			if (value > 1)
+				System.arraycopy(more, 0, infos, 1, infos.length - 1);
+			return infos;
+		}
+	}
+
+	/**
+	 * The class of VIRTUAL_NODE. It is shared by all the trees, so it is kept
+	 * immutable: every setter throws UnsupportedOperationException. The
+	 * setters only guard callers outside this file. AVLTree and its node
+	 * classes write the fields (parent, left, right, key, info, height, size)
+	 * directly, and Java gives no way to close them on one instance, so that
+	 * code must never write a field of a node that is not a real node.
+	 * test/AVLTreeStress checks that the fields stay untouched.
+	 */
+	private static final class VirtualNode extends AVLNode {
+
+		// complexity: O(1)
+		@Override
+		public void setKey(int key) {
+			throw immutable();
+		}
+
+		// complexity: O(1)
+		@Override
+		public void setValue(String info) {
+			throw immutable();
+		}
+
+		// complexity: O(1)
+		@Override
+		public void setLeft(IAVLNode node) {
+			throw immutable();
+		}
+
+		// complexity: O(1)
+		@Override
+		public void setRight(IAVLNode node) {
+			throw immutable();
+		}
+
+		// complexity: O(1)
+		@Override
+		public void setParent(IAVLNode node) {
+			throw immutable();
+		}
+
+		// complexity: O(1)
+		@Override
+		public void setHeight(int height) {
+			throw immutable();
+		}
+
+		// complexity: O(1)
+		@Override
+		public void setSize(int size) {
+			throw immutable();
+		}
+
+		// complexity: O(1)
+		@Override
+		public void promote() {
+			throw immutable();
+		}
+
+		// complexity: O(1)
+		@Override
+		public void demote() {
+			throw immutable();
+		}
+
+		// complexity: O(1)
+		@Override
+		public void setSon(boolean side, AVLNode son) {
+			throw immutable();
+		}
+
+		// complexity: O(1)
+		private static UnsupportedOperationException immutable() {
+			return new UnsupportedOperationException("the virtual node is shared by all trees and cannot be changed");
 		}
 	}
 }
@@ -0,0 +1,335 @@
+import java.util.concurrent.atomic.LongAdder;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Period;
+
+/**
+ *
+ * AVLTreeMetrics
+ *
+ * Counters for the work AVLTree does on its hot paths: promotions, demotions,
+ * single and double rotations, the length of search paths, the cost of joins
+ * and the depth splits start at. They are kept for all trees of the process in
+ * LongAdders, so threads working on different trees do not contend on them.
+ *
+ * Metrics are off unless the JVM is started with -Davltree.metrics=true. The
+ * flag is a static final field, so when it is off the JIT folds every
+ * "if (AVLTreeMetrics.ENABLED)" in AVLTree away and the trees pay nothing.
+ *
+ * When metrics are on, every join and split is also a JFR event, and the
+ * counters are a periodic JFR event, so a flight recording shows them next to
+ * GC and allocation.
+ *
+ */
+
+public final class AVLTreeMetrics {
+
+	public static final boolean ENABLED = Boolean.getBoolean("avltree.metrics");
+
+	// an AVL tree of 2^31 nodes is less than 46 high, so path lengths, join
+	// costs and depths all fit in the buckets
+	static final int BUCKETS = 64;
+
+	private static final LongAdder PROMOTIONS = new LongAdder();
+	private static final LongAdder DEMOTIONS = new LongAdder();
+	private static final LongAdder SINGLE_ROTATIONS = new LongAdder();
+	private static final LongAdder DOUBLE_ROTATIONS = new LongAdder();
+	private static final Histogram SEARCH_PATHS = new Histogram();
+	private static final Histogram JOIN_COSTS = new Histogram();
+	private static final Histogram SPLIT_DEPTHS = new Histogram();
+
+	static {
+		if (ENABLED)
+			FlightRecorder.addPeriodicEvent(CountersEvent.class, AVLTreeMetrics::emitCounters);
+	}
+
+	// complexity: O(1)
+	private AVLTreeMetrics() {
+	}
+
+	// complexity: O(1)
+	public static long promotions() {
+		return PROMOTIONS.sum();
+	}
+
+	// complexity: O(1)
+	public static long demotions() {
+		return DEMOTIONS.sum();
+	}
+
+	// complexity: O(1)
+	public static long singleRotations() {
+		return SINGLE_ROTATIONS.sum();
+	}
+
+	// complexity: O(1)
+	public static long doubleRotations() {
+		return DOUBLE_ROTATIONS.sum();
+	}
+
+	/**
+	 * public static Histogram searchPathLengths()
+	 *
+	 * returns the number of nodes visited by each search, insert and delete
+	 */
+	// complexity: O(1)
+	public static Histogram searchPathLengths() {
+		return SEARCH_PATHS;
+	}
+
+	/**
+	 * public static Histogram joinCosts()
+	 *
+	 * returns the values returned by join, |tree.rank - t.rank| + 1
+	 */
+	// complexity: O(1)
+	public static Histogram joinCosts() {
+		return JOIN_COSTS;
+	}
+
+	/**
+	 * public static Histogram splitDepths()
+	 *
+	 * returns the depth of the node each split started at, the root has depth 0
+	 */
+	// complexity: O(1)
+	public static Histogram splitDepths() {
+		return SPLIT_DEPTHS;
+	}
+
+	/**
+	 * public static void reset()
+	 *
+	 * sets every counter and histogram back to zero. Updates that run at the same
+	 * time may or may not be kept.
+	 */
+	// complexity: O(1)
+	public static void reset() {
+		PROMOTIONS.reset();
+		DEMOTIONS.reset();
+		SINGLE_ROTATIONS.reset();
+		DOUBLE_ROTATIONS.reset();
+		SEARCH_PATHS.reset();
+		JOIN_COSTS.reset();
+		SPLIT_DEPTHS.reset();
+	}
+
+	/**
+	 * public static String report()
+	 *
+	 * returns the counters and a summary of each histogram on one line
+	 */
+	// complexity: O(1)
+	public static String report() {
+		return "promotions=" + promotions() + ", demotions=" + demotions() + ", singleRotations="
+				+ singleRotations() + ", doubleRotations=" + doubleRotations() + ", searchPaths=" + SEARCH_PATHS
+				+ ", joinCosts=" + JOIN_COSTS + ", splitDepths=" + SPLIT_DEPTHS;
+	}
+
+	// the recorders below are called by AVLTree, each one checks ENABLED itself
+	// so a call site costs nothing once the JIT has inlined it
+
+	// complexity: O(1)
+	static void promotion() {
+		if (ENABLED)
+			PROMOTIONS.increment();
+	}
+
+	// complexity: O(1)
+	static void demotion() {
+		if (ENABLED)
+			DEMOTIONS.increment();
+	}
+
+	// complexity: O(1)
+	static void singleRotation() {
+		if (ENABLED)
+			SINGLE_ROTATIONS.increment();
+	}
+
+	// complexity: O(1)
+	static void doubleRotation() {
+		if (ENABLED)
+			DOUBLE_ROTATIONS.increment();
+	}
+
+	// complexity: O(1)
+	static void searchPath(int length) {
+		if (ENABLED)
+			SEARCH_PATHS.record(length);
+	}
+
+	// complexity: O(1)
+	static void join(int cost) {
+		if (!ENABLED)
+			return;
+		JOIN_COSTS.record(cost);
+		JoinEvent event = new JoinEvent();
+		if (event.shouldCommit()) {
+			event.cost = cost;
+			event.commit();
+		}
+	}
+
+	// complexity: O(1)
+	static void split(int depth) {
+		if (!ENABLED)
+			return;
+		SPLIT_DEPTHS.record(depth);
+		SplitEvent event = new SplitEvent();
+		if (event.shouldCommit()) {
+			event.depth = depth;
+			event.commit();
+		}
+	}
+
+	// complexity: O(1)
+	private static void emitCounters() {
+		CountersEvent event = new CountersEvent();
+		event.promotions = promotions();
+		event.demotions = demotions();
+		event.singleRotations = singleRotations();
+		event.doubleRotations = doubleRotations();
+		event.searches = SEARCH_PATHS.count();
+		event.meanSearchPath = SEARCH_PATHS.mean();
+		event.commit();
+	}
+
+	/**
+	 * Counts of small non-negative values, one LongAdder per value. Values of
+	 * BUCKETS - 1 and more share the last bucket.
+	 */
+	public static final class Histogram {
+
+		private final LongAdder[] buckets = new LongAdder[BUCKETS];
+		private final LongAdder sum = new LongAdder();
+
+		// complexity: O(BUCKETS)
+		Histogram() {
+			for (int i = 0; i < BUCKETS; i++)
+				buckets[i] = new LongAdder();
+		}
+
+		// complexity: O(1)
+		void record(int value) {
+			buckets[Math.min(Math.max(value, 0), BUCKETS - 1)].increment();
+			sum.add(value);
+		}
+
+		// complexity: O(BUCKETS)
+		void reset() {
+			for (LongAdder bucket : buckets)
+				bucket.reset();
+			sum.reset();
+		}
+
+		/**
+		 * public long[] counts()
+		 *
+		 * returns the number of times each value was recorded, indexed by value
+		 */
+		// complexity: O(BUCKETS)
+		public long[] counts() {
+			long[] counts = new long[BUCKETS];
+			for (int i = 0; i < BUCKETS; i++)
+				counts[i] = buckets[i].sum();
+			return counts;
+		}
+
+		// complexity: O(BUCKETS)
+		public long count() {
+			long count = 0;
+			for (LongAdder bucket : buckets)
+				count += bucket.sum();
+			return count;
+		}
+
+		// complexity: O(BUCKETS)
+		public double mean() {
+			long count = count();
+			return count == 0 ? 0 : (double) sum.sum() / count;
+		}
+
+		/**
+		 * public int percentile(double p)
+		 *
+		 * returns the smallest value such that at least p percent of the recorded
+		 * values are smaller or equal to it, or 0 if nothing was recorded
+		 */
+		// complexity: O(BUCKETS)
+		public int percentile(double p) {
+			long[] counts = counts();
+			long total = 0;
+			for (long c : counts)
+				total += c;
+			long needed = (long) Math.ceil(p / 100 * total);
+			long seen = 0;
+			for (int i = 0; i < BUCKETS; i++) {
+				seen += counts[i];
+				if (seen >= needed && seen > 0)
+					return i;
+			}
+			return 0;
+		}
+
+		// complexity: O(BUCKETS)
+		public int max() {
+			for (int i = BUCKETS - 1; i >= 0; i--) {
+				if (buckets[i].sum() > 0)
+					return i;
+			}
+			return 0;
+		}
+
+		// complexity: O(BUCKETS)
+		public String toString() {
+			return "[count=" + count() + ", mean=" + String.format("%.2f", mean()) + ", p50=" + percentile(50)
+					+ ", p99=" + percentile(99) + ", max=" + max() + "]";
+		}
+	}
+
+	@Name("avltree.Join")
+	@Label("AVL Tree Join")
+	@Category("AVL Tree")
+	@Description("A join of two AVL trees")
+	static final class JoinEvent extends Event {
+		@Label("Cost")
+		@Description("|tree.rank - t.rank| + 1")
+		int cost;
+	}
+
+	@Name("avltree.Split")
+	@Label("AVL Tree Split")
+	@Category("AVL Tree")
+	@Description("A split of an AVL tree")
+	static final class SplitEvent extends Event {
+		@Label("Depth")
+		@Description("Depth of the node the split started at")
+		int depth;
+	}
+
+	@Name("avltree.Counters")
+	@Label("AVL Tree Counters")
+	@Category("AVL Tree")
+	@Description("Rebalancing and search counters of all AVL trees since the start or the last reset")
+	@Period("1 s")
+	static final class CountersEvent extends Event {
+		@Label("Promotions")
+		long promotions;
+		@Label("Demotions")
+		long demotions;
+		@Label("Single Rotations")
+		long singleRotations;
+		@Label("Double Rotations")
+		long doubleRotations;
+		@Label("Searches")
+		long searches;
+		@Label("Mean Search Path")
+		double meanSearchPath;
+	}
+}
@@ -0,0 +1,755 @@
+import java.util.Arrays;
+
+/**
+ *
+ * ArrayAVLTree
+ *
+ * An AVL Tree with distinct integer keys and info, like AVLTree, but the nodes
+ * are kept in parallel primitive arrays and addressed by int handles instead
+ * of being objects. A node costs 6 ints and a String reference, with no object
+ * header and no virtual children. Deleted slots go to a free list and are
+ * reused by later inserts.
+ *
+ * The rebalance cases, rotations and join are the node engine of the
+ * generated primitive trees, rewritten by generate.sh from field accesses on
+ * nodes to array accesses on handles, and return the same counts as AVLTree.
+ *
+ * Trees that came from one split share their store (the arrays and the free
+ * list) and are not independent: they may not be used from different threads
+ * at the same time, even by readers while one of them is written, without
+ * outside locking.
+ *
+ * Generated by gen/generate.sh from gen/ArrayAVLTree.java.template and the
+ * node engine of gen/PrimitiveAVLTree.java.template, do not edit by hand.
+ *
+ */
+
+public class ArrayAVLTree {
+
+	// handle of the virtual node, slot 0 of every store
+	static final int NIL = 0;
+	// parent of a root
+	static final int NONE = -1;
+
+	final Store store;
+	int root;
+	int min;
+	int max;
+
+	// ArrayAVLTree constructor
+	// complexity: O(1)
+	public ArrayAVLTree() {
+		this(16);
+	}
+
+	// ArrayAVLTree constructor with room for capacity nodes before growing
+	// complexity: O(capacity)
+	public ArrayAVLTree(int capacity) {
+		this(new Store(capacity));
+	}
+
+	// a tree over an existing store, used by split
+	// complexity: O(1)
+	ArrayAVLTree(Store store) {
+		this.store = store;
+		root = min = max = NIL;
+	}
+
+	/**
+	 * public boolean empty()
+	 *
+	 * returns true if and only if the tree is empty
+	 */
+	// complexity: O(1)
+	public boolean empty() {
+		return root == NIL;
+	}
+
+	/**
+	 * public int size()
+	 *
+	 * Returns the number of nodes in the tree.
+	 */
+	// complexity: O(1)
+	public int size() {
+		return store.size[root];
+	}
+
+	/**
+	 * public String search(int k)
+	 *
+	 * returns the info of an item with key k if it exists in the tree otherwise,
+	 * returns null
+	 */
+	// complexity: O(log n)
+	public String search(int k) {
+		Store s = store;
+		int node = root;
+		while (node != NIL) {
+			int key = s.key[node];
+			if (key == k)
+				return s.info[node];
+			node = k < key ? s.left[node] : s.right[node];
+		}
+		return null;
+	}
+
+	/**
+	 * public int insert(int k, String i)
+	 *
+	 * inserts an item with key k and info i. returns the number of rebalancing
+	 * operations counted the same way as AVLTree.insert, or -1 if an item with key
+	 * k already exists in the tree.
+	 */
+	// complexity: O(log n)
+	public int insert(int k, String i) {
+		Store s = store;
+		if (root == NIL) {
+			root = min = max = s.allocate(k, i, NONE);
+			return 0;
+		}
+		int parent = treePosition(k);
+		if (s.key[parent] == k)
+			return -1;
+		int node = s.allocate(k, i, parent);
+		if (k < s.key[parent])
+			s.left[parent] = node;
+		else
+			s.right[parent] = node;
+		if (k < s.key[min])
+			min = node;
+		if (k > s.key[max])
+			max = node;
+		for (int n = parent; n != NONE; n = s.parent[n])
+			s.size[n]++;
+		int ops = s.insertRebalance(parent);
+		root = s.topOf(root);
+		return ops;
+	}
+
+	/**
+	 * returns the last node seen while looking for a node with key k
+	 */
+	// complexity: O(log n)
+	private int treePosition(int k) {
+		Store s = store;
+		int node = root;
+		int prev = node;
+		while (node != NIL) {
+			prev = node;
+			int key = s.key[node];
+			if (key == k)
+				return node;
+			node = k < key ? s.left[node] : s.right[node];
+		}
+		return prev;
+	}
+
+	/**
+	 * public int delete(int k)
+	 *
+	 * deletes the item with key k. returns the number of rebalancing operations
+	 * counted the same way as AVLTree.delete, or -1 if there is no item with key
+	 * k. the freed slot is reused by a later insert.
+	 */
+	// complexity: O(log n)
+	public int delete(int k) {
+		Store s = store;
+		int node = treePosition(k);
+		if (node == NIL || s.key[node] != k)
+			return -1;
+		if (node == min)
+			min = s.successor(node);
+		if (node == max)
+			max = s.predecessor(node);
+		if (s.left[node] != NIL && s.right[node] != NIL) {
+			// move the successor's item here and unlink the successor instead
+			int successor = s.successor(node);
+			s.key[node] = s.key[successor];
+			s.info[node] = s.info[successor];
+			if (successor == max)
+				max = node;
+			node = successor;
+		}
+		int son = s.left[node] != NIL ? s.left[node] : s.right[node];
+		int parent = s.parent[node];
+		if (son != NIL)
+			s.parent[son] = parent;
+		if (parent == NONE)
+			root = son;
+		else if (s.left[parent] == node)
+			s.left[parent] = son;
+		else
+			s.right[parent] = son;
+		s.free(node);
+		if (parent == NONE)
+			return 0;
+		for (int n = parent; n != NONE; n = s.parent[n])
+			s.size[n]--;
+		int ops = s.deleteRebalance(parent);
+		root = s.topOf(root);
+		return ops;
+	}
+
+	/**
+	 * public String min()
+	 *
+	 * Returns the info of the item with the smallest key in the tree, or null if
+	 * the tree is empty
+	 */
+	// complexity: O(1)
+	public String min() {
+		return min == NIL ? null : store.info[min];
+	}
+
+	/**
+	 * public String max()
+	 *
+	 * Returns the info of the item with the largest key in the tree, or null if the
+	 * tree is empty
+	 */
+	// complexity: O(1)
+	public String max() {
+		return max == NIL ? null : store.info[max];
+	}
+
+	/**
+	 * public int[] keysToArray()
+	 *
+	 * Returns a sorted array which contains all keys in the tree, or an empty array
+	 * if the tree is empty.
+	 */
+	// complexity: O(n)
+	public int[] keysToArray() {
+		Store s = store;
+		int[] array = new int[size()];
+		int i = 0;
+		for (int node = min; node != NIL; node = s.successor(node))
+			array[i++] = s.key[node];
+		return array;
+	}
+
+	/**
+	 * public String[] infoToArray()
+	 *
+	 * Returns an array which contains all info in the tree, sorted by their
+	 * respective keys, or an empty array if the tree is empty.
+	 */
+	// complexity: O(n)
+	public String[] infoToArray() {
+		Store s = store;
+		String[] array = new String[size()];
+		int i = 0;
+		for (int node = min; node != NIL; node = s.successor(node))
+			array[i++] = s.info[node];
+		return array;
+	}
+
+	/**
+	 * public ArrayAVLTree[] split(int x)
+	 *
+	 * splits the tree into 2 trees according to the key x. Returns an array [t1,t2]
+	 * with two trees, keys(t1) < x < keys(t2). Both share this tree's store; the
+	 * slot of x is freed if x is in the tree, and this tree is left empty. Sharing
+	 * the store means t1 and t2 are not thread safe against each other: a write to
+	 * either may grow or reuse the arrays under the other.
+	 */
+	// complexity: O(log n)
+	public ArrayAVLTree[] split(int x) {
+		Store s = store;
+		int left = NIL;
+		int right = NIL;
+		int parent = NONE;
+		if (root != NIL) {
+			int node = treePosition(x);
+			if (s.key[node] == x) {
+				left = s.left[node];
+				right = s.right[node];
+				s.detach(left);
+				s.detach(right);
+				parent = s.parent[node];
+				s.free(node);
+			} else {
+				// x is absent, it would hang under node
+				parent = node;
+			}
+		}
+		while (parent != NONE) {
+			int next = s.parent[parent];
+			if (x > s.key[parent]) {
+				int sub = s.left[parent];
+				s.detach(sub);
+				left = s.join(sub, parent, left);
+			} else {
+				int sub = s.right[parent];
+				s.detach(sub);
+				right = s.join(right, parent, sub);
+			}
+			parent = next;
+		}
+		ArrayAVLTree t1 = new ArrayAVLTree(s);
+		ArrayAVLTree t2 = new ArrayAVLTree(s);
+		t1.setRoot(left);
+		t2.setRoot(right);
+		root = min = max = NIL;
+		return new ArrayAVLTree[] { t1, t2 };
+	}
+
+	/**
+	 * public int join(int k, String i, ArrayAVLTree t)
+	 *
+	 * joins the item (k, i) and the tree t into this tree, t is left empty.
+	 * Returns |tree.rank - t.rank| + 1 like AVLTree.join.
+	 *
+	 * precondition: keys(t) and k are all smaller or all larger than keys(), and t
+	 * shares this tree's store (it is empty, or came from the same split).
+	 */
+	// complexity: O(|tree.rank - t.rank| + 1)
+	public int join(int k, String i, ArrayAVLTree t) {
+		Store s = store;
+		if (t.store != s && !t.empty())
+			throw new IllegalArgumentException("join of trees with different stores");
+		int delta = Math.abs(s.height[t.root] - s.height[root]) + 1;
+		boolean thisIsSmaller = root != NIL ? k > s.key[root] : t.root == NIL || k < s.key[t.root];
+		int x = s.allocate(k, i, NONE);
+		int lesser = thisIsSmaller ? root : t.root;
+		int greater = thisIsSmaller ? t.root : root;
+		int newMin = lesser == NIL ? x : (thisIsSmaller ? min : t.min);
+		int newMax = greater == NIL ? x : (thisIsSmaller ? t.max : max);
+		root = s.join(lesser, x, greater);
+		min = newMin;
+		max = newMax;
+		t.root = t.min = t.max = NIL;
+		return delta;
+	}
+
+	/**
+	 * makes node the root of this tree and finds min and max
+	 */
+	// complexity: O(log n)
+	private void setRoot(int node) {
+		Store s = store;
+		root = min = max = node;
+		if (node == NIL)
+			return;
+		while (s.left[min] != NIL)
+			min = s.left[min];
+		while (s.right[max] != NIL)
+			max = s.right[max];
+	}
+
+	/**
+	 * The node arrays. Slot 0 is the virtual node (height -1, size 0), the rest
+	 * are real nodes or on the free list, which is chained through left[].
+	 * Trees that came from the same split share one store.
+	 */
+	static final class Store {
+
+		int[] key;
+		String[] info;
+		int[] height;
+		int[] size;
+		int[] parent;
+		int[] left;
+		int[] right;
+		// first slot that was never used
+		int used;
+		// head of the free list, NIL if empty
+		int free;
+
+		// complexity: O(capacity)
+		Store(int capacity) {
+			capacity = Math.max(capacity, 2);
+			key = new int[capacity];
+			info = new String[capacity];
+			height = new int[capacity];
+			size = new int[capacity];
+			parent = new int[capacity];
+			left = new int[capacity];
+			right = new int[capacity];
+			height[NIL] = -1;
+			parent[NIL] = NONE;
+			used = 1;
+			free = NIL;
+		}
+
+		/**
+		 * returns a slot holding a new leaf, from the free list if possible
+		 */
+		// complexity: O(1) amortized
+		int allocate(int k, String i, int p) {
+			int node = free;
+			if (node != NIL)
+				free = left[node];
+			else {
+				if (used == key.length)
+					grow();
+				node = used++;
+			}
+			key[node] = k;
+			info[node] = i;
+			height[node] = 0;
+			size[node] = 1;
+			parent[node] = p;
+			left[node] = NIL;
+			right[node] = NIL;
+			return node;
+		}
+
+		/**
+		 * puts the slot of node on the free list
+		 */
+		// complexity: O(1)
+		void free(int node) {
+			info[node] = null;
+			left[node] = free;
+			free = node;
+		}
+
+		// complexity: O(n)
+		private void grow() {
+			int capacity = key.length + (key.length >> 1);
+			if (capacity < 0 || capacity > Integer.MAX_VALUE - 8)
+				capacity = Integer.MAX_VALUE - 8;
+			if (capacity <= key.length)
+				throw new IllegalStateException("ArrayAVLTree is full");
+			key = Arrays.copyOf(key, capacity);
+			info = Arrays.copyOf(info, capacity);
+			height = Arrays.copyOf(height, capacity);
+			size = Arrays.copyOf(size, capacity);
+			parent = Arrays.copyOf(parent, capacity);
+			left = Arrays.copyOf(left, capacity);
+			right = Arrays.copyOf(right, capacity);
+		}
+
+		/**
+		 * cuts node from its parent, the parent keeps pointing to it
+		 */
+		// complexity: O(1)
+		private void detach(int node) {
+			if (node != NIL)
+				parent[node] = NONE;
+		}
+
+		/**
+		 * joins the detached subtrees l and r with x in the middle (keys(l) < key[x] <
+		 * keys(r)) and returns the root of the result
+		 */
+		// complexity: O(|height[l] - height[r]| + 1)
+		int join(int l, int x, int r) {
+			if (height[l] > height[r] + 1)
+				return joinIntoRight(l, x, r);
+			if (height[r] > height[l] + 1)
+				return joinIntoLeft(l, x, r);
+			link(x, l, r);
+			parent[x] = NONE;
+			return x;
+		}
+
+		/**
+		 * hangs x with the low tree r on the right spine of the higher tree l
+		 */
+		// complexity: O(height[l] - height[r])
+		private int joinIntoRight(int l, int x, int r) {
+			int p = NONE;
+			int c = l;
+			while (height[c] > height[r] + 1) {
+				p = c;
+				c = right[c];
+			}
+			link(x, c, r);
+			right[p] = x;
+			parent[x] = p;
+			for (int n = p; n != NONE; n = parent[n])
+				size[n] += 1 + size[r];
+			insertRebalance(p);
+			return topOf(l);
+		}
+
+		/**
+		 * hangs x with the low tree l on the left spine of the higher tree r
+		 */
+		// complexity: O(height[r] - height[l])
+		private int joinIntoLeft(int l, int x, int r) {
+			int p = NONE;
+			int c = r;
+			while (height[c] > height[l] + 1) {
+				p = c;
+				c = left[c];
+			}
+			link(x, l, c);
+			left[p] = x;
+			parent[x] = p;
+			for (int n = p; n != NONE; n = parent[n])
+				size[n] += 1 + size[l];
+			insertRebalance(p);
+			return topOf(r);
+		}
+
+		/**
+		 * returns the root above node, node was a root before at most two rotations
+		 */
+		// complexity: O(1)
+		private int topOf(int node) {
+			while (parent[node] != NONE)
+				node = parent[node];
+			return node;
+		}
+
+		/**
+		 * makes l and r the sons of x and sets x's height and size from them
+		 */
+		// complexity: O(1)
+		private void link(int x, int l, int r) {
+			left[x] = l;
+			right[x] = r;
+			if (l != NIL)
+				parent[l] = x;
+			if (r != NIL)
+				parent[r] = x;
+			height[x] = Math.max(height[l], height[r]) + 1;
+			size[x] = size[l] + size[r] + 1;
+		}
+
+		/**
+		 * rebalancing after insert, same cases and counts as AVLTree.insertRebalance
+		 */
+		// complexity: O(log n)
+		int insertRebalance(int node) {
+			int ops = 0;
+			while (node != NONE) {
+				switch (findEdges(node)) {
+				case AVLTree.L0R1:
+				case AVLTree.L1R0:
+					height[node]++;
+					ops++;
+					node = parent[node];
+					break;
+				case AVLTree.L0R2:
+					return ops + insertRebalanceL0R2(node);
+				case AVLTree.L2R0:
+					return ops + insertRebalanceL2R0(node);
+				default:
+					return ops;
+				}
+			}
+			return ops;
+		}
+
+		// complexity: O(1)
+		private int insertRebalanceL0R2(int node) {
+			int child = left[node];
+			switch (findEdges(child)) {
+			case AVLTree.L1R1:
+				rotateRight(child);
+				height[child]++;
+				return 4;
+			case AVLTree.L1R2:
+				rotateRight(child);
+				height[node]--;
+				return 2;
+			case AVLTree.L2R1:
+				int grandChild = right[child];
+				rotateLeft(grandChild);
+				rotateRight(grandChild);
+				height[child]--;
+				height[node]--;
+				height[grandChild]++;
+				return 5;
+			default:
+				return 0;
+			}
+		}
+
+		// complexity: O(1)
+		private int insertRebalanceL2R0(int node) {
+			int child = right[node];
+			switch (findEdges(child)) {
+			case AVLTree.L1R1:
+				rotateLeft(child);
+				height[child]++;
+				return 4;
+			case AVLTree.L2R1:
+				rotateLeft(child);
+				height[node]--;
+				return 2;
+			case AVLTree.L1R2:
+				int grandChild = left[child];
+				rotateRight(grandChild);
+				rotateLeft(grandChild);
+				height[child]--;
+				height[node]--;
+				height[grandChild]++;
+				return 5;
+			default:
+				return 0;
+			}
+		}
+
+		/**
+		 * rebalancing after delete, same cases and counts as AVLTree.deleteRebalance
+		 */
+		// complexity: O(log n)
+		private int deleteRebalance(int node) {
+			int ops = 0;
+			while (node != NONE) {
+				switch (findEdges(node)) {
+				case AVLTree.L2R2:
+					height[node]--;
+					ops++;
+					node = parent[node];
+					break;
+				case AVLTree.L1R3: {
+					int son = left[node];
+					switch (findEdges(son)) {
+					case AVLTree.L1R1:
+						rotateRight(son);
+						height[node]--;
+						height[son]++;
+						return ops + 3;
+					case AVLTree.L2R1:
+						int grandSon = right[son];
+						rotateLeft(grandSon);
+						rotateRight(grandSon);
+						height[grandSon]++;
+						height[node] -= 2;
+						height[son]--;
+						ops += 6;
+						node = parent[grandSon];
+						break;
+					case AVLTree.L1R2:
+						rotateRight(son);
+						height[node] -= 2;
+						ops += 3;
+						node = parent[son];
+						break;
+					default:
+						return ops;
+					}
+					break;
+				}
+				case AVLTree.L3R1: {
+					int son = right[node];
+					switch (findEdges(son)) {
+					case AVLTree.L1R1:
+						rotateLeft(son);
+						height[node]--;
+						height[son]++;
+						return ops + 3;
+					case AVLTree.L1R2:
+						int grandSon = left[son];
+						rotateRight(grandSon);
+						rotateLeft(grandSon);
+						height[grandSon]++;
+						height[node] -= 2;
+						height[son]--;
+						ops += 6;
+						node = parent[grandSon];
+						break;
+					case AVLTree.L2R1:
+						rotateLeft(son);
+						height[node] -= 2;
+						ops += 3;
+						node = parent[son];
+						break;
+					default:
+						return ops;
+					}
+					break;
+				}
+				default:
+					return ops;
+				}
+			}
+			return ops;
+		}
+
+		/**
+		 * rotates node above its parent, node is a left son
+		 */
+		// complexity: O(1)
+		private void rotateRight(int node) {
+			int p = parent[node];
+			int inner = right[node];
+			replaceSon(p, node);
+			left[p] = inner;
+			if (inner != NIL)
+				parent[inner] = p;
+			right[node] = p;
+			parent[p] = node;
+			size[p] = size[left[p]] + size[right[p]] + 1;
+			size[node] = size[left[node]] + size[p] + 1;
+		}
+
+		/**
+		 * rotates node above its parent, node is a right son
+		 */
+		// complexity: O(1)
+		private void rotateLeft(int node) {
+			int p = parent[node];
+			int inner = left[node];
+			replaceSon(p, node);
+			right[p] = inner;
+			if (inner != NIL)
+				parent[inner] = p;
+			left[node] = p;
+			parent[p] = node;
+			size[p] = size[left[p]] + size[right[p]] + 1;
+			size[node] = size[right[node]] + size[p] + 1;
+		}
+
+		/**
+		 * puts node in the place of its parent p under the grandparent
+		 */
+		// complexity: O(1)
+		private void replaceSon(int p, int node) {
+			int grandParent = parent[p];
+			parent[node] = grandParent;
+			if (grandParent != NONE) {
+				if (left[grandParent] == p)
+					left[grandParent] = node;
+				else
+					right[grandParent] = node;
+			}
+		}
+
+		// complexity: O(log n)
+		private int successor(int node) {
+			if (right[node] != NIL) {
+				node = right[node];
+				while (left[node] != NIL)
+					node = left[node];
+				return node;
+			}
+			while (parent[node] != NONE && right[parent[node]] == node)
+				node = parent[node];
+			return parent[node] == NONE ? NIL : parent[node];
+		}
+
+		// complexity: O(log n)
+		private int predecessor(int node) {
+			if (left[node] != NIL) {
+				node = left[node];
+				while (right[node] != NIL)
+					node = right[node];
+				return node;
+			}
+			while (parent[node] != NONE && left[parent[node]] == node)
+				node = parent[node];
+			return parent[node] == NONE ? NIL : parent[node];
+		}
+
+		/**
+		 * returns the edge code of node, see AVLTree.L0R1
+		 */
+		// complexity: O(1)
+		int findEdges(int node) {
+			int h = height[node];
+			int deltaLeft = h - height[left[node]];
+			int deltaRight = h - height[right[node]];
+			if (((deltaLeft | deltaRight) & ~3) != 0)
+				return AVLTree.NO_EDGE;
+			return (deltaLeft << 2) | deltaRight;
+		}
+	}
+}
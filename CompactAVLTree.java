@@ -0,0 +1,539 @@
+import java.util.Arrays;
+
+/**
+ *
+ * CompactAVLTree
+ *
+ * An AVL Tree with distinct integer keys and info, like AVLTree, with nodes
+ * kept as small as the rebalancing allows. A node is an int handle into three
+ * arrays:
+ *
+ * links holds key, left and right of a node next to each other, so a search
+ * reads one cache line per node instead of one per field.
+ *
+ * meta holds the size of the subtree and the rank difference to each son in
+ * one long: size << 4 | left difference << 2 | right difference. The rank
+ * (height) of a node is never stored, the rebalance cases only look at the
+ * differences, which are 1 or 2 between operations. A missing son has rank -1,
+ * so a leaf has differences 1 and 1.
+ *
+ * info holds the info.
+ *
+ * There are no parent links. insert and delete record their path from the root
+ * in a stack and rebalance back up along it.
+ *
+ * A node takes 12 + 8 + 4 = 24 bytes of arrays (with compressed references),
+ * against 40 for an AVLNode object and 28 for an ArrayAVLTree slot.
+ *
+ */
+
+public class CompactAVLTree {
+
+	// handle of the missing node, slot 0 of the arrays, its meta (size 0) is
+	// never written
+	static final int NIL = 0;
+	// ints per node in links, and the offsets of the fields. LEFT and RIGHT are
+	// also the sides a path takes, 3 - side is the other one.
+	static final int STRIDE = 3;
+	static final int KEY = 0;
+	static final int LEFT = 1;
+	static final int RIGHT = 2;
+	static final int SIZE_SHIFT = 4;
+	// meta of a new leaf: size 1, differences 1 and 1
+	static final long LEAF = (1L << SIZE_SHIFT) | (1 << 2) | 1;
+	// an AVL tree of 2^31 nodes is less than 46 high
+	static final int MAX_HEIGHT = 64;
+
+	int[] links;
+	long[] meta;
+	String[] info;
+	int root;
+	// first slot that was never used
+	int used;
+	// head of the free list, linked through the left field, NIL if empty
+	int free;
+	// path of the running insert or delete: the nodes and the side taken at each
+	private final int[] path = new int[MAX_HEIGHT];
+	private final int[] sides = new int[MAX_HEIGHT];
+
+	// CompactAVLTree constructor
+	// complexity: O(1)
+	public CompactAVLTree() {
+		this(16);
+	}
+
+	// CompactAVLTree constructor with room for capacity nodes before growing
+	// complexity: O(capacity)
+	public CompactAVLTree(int capacity) {
+		capacity = Math.max(capacity, 2);
+		links = new int[STRIDE * capacity];
+		meta = new long[capacity];
+		info = new String[capacity];
+		root = NIL;
+		used = 1;
+		free = NIL;
+	}
+
+	/**
+	 * public boolean empty()
+	 *
+	 * returns true if and only if the tree is empty
+	 */
+	// complexity: O(1)
+	public boolean empty() {
+		return root == NIL;
+	}
+
+	/**
+	 * public int size()
+	 *
+	 * Returns the number of nodes in the tree.
+	 */
+	// complexity: O(1)
+	public int size() {
+		return size(root);
+	}
+
+	/**
+	 * public String search(int k)
+	 *
+	 * returns the info of an item with key k if it exists in the tree otherwise,
+	 * returns null
+	 */
+	// complexity: O(log n)
+	public String search(int k) {
+		int[] l = links;
+		int node = root;
+		while (node != NIL) {
+			int at = node * STRIDE;
+			int key = l[at];
+			if (key == k)
+				return info[node];
+			node = l[at + (k < key ? LEFT : RIGHT)];
+		}
+		return null;
+	}
+
+	/**
+	 * public int insert(int k, String i)
+	 *
+	 * inserts an item with key k and info i. returns the number of rebalancing
+	 * operations counted the same way as AVLTree.insert, or -1 if an item with key
+	 * k already exists in the tree.
+	 */
+	// complexity: O(log n)
+	public int insert(int k, String i) {
+		int depth = 0;
+		int node = root;
+		while (node != NIL) {
+			int at = node * STRIDE;
+			int key = links[at];
+			if (key == k)
+				return -1;
+			int side = k < key ? LEFT : RIGHT;
+			path[depth] = node;
+			sides[depth] = side;
+			depth++;
+			node = links[at + side];
+		}
+		int inserted = allocate(k, i);
+		if (depth == 0) {
+			root = inserted;
+			return 0;
+		}
+		for (int d = 0; d < depth; d++)
+			meta[path[d]] += 1L << SIZE_SHIFT;
+		links[path[depth - 1] * STRIDE + sides[depth - 1]] = inserted;
+		return insertRebalance(depth);
+	}
+
+	/**
+	 * public int delete(int k)
+	 *
+	 * deletes an item with key k if it is there. returns the number of
+	 * rebalancing operations counted the same way as AVLTree.delete, or -1 if an
+	 * item with key k was not found in the tree.
+	 */
+	// complexity: O(log n)
+	public int delete(int k) {
+		int depth = 0;
+		int node = root;
+		while (node != NIL) {
+			int at = node * STRIDE;
+			int key = links[at];
+			if (key == k)
+				break;
+			int side = k < key ? LEFT : RIGHT;
+			path[depth] = node;
+			sides[depth] = side;
+			depth++;
+			node = links[at + side];
+		}
+		if (node == NIL)
+			return -1;
+		if (child(node, LEFT) != NIL && child(node, RIGHT) != NIL) {
+			// the successor's item moves into node and the successor goes
+			path[depth] = node;
+			sides[depth] = RIGHT;
+			depth++;
+			int successor = child(node, RIGHT);
+			while (child(successor, LEFT) != NIL) {
+				path[depth] = successor;
+				sides[depth] = LEFT;
+				depth++;
+				successor = child(successor, LEFT);
+			}
+			links[node * STRIDE + KEY] = links[successor * STRIDE + KEY];
+			info[node] = info[successor];
+			node = successor;
+		}
+		int son = child(node, LEFT) != NIL ? child(node, LEFT) : child(node, RIGHT);
+		for (int d = 0; d < depth; d++)
+			meta[path[d]] -= 1L << SIZE_SHIFT;
+		replaceChild(depth, son);
+		release(node);
+		return deleteRebalance(depth);
+	}
+
+	/**
+	 * public String min()
+	 *
+	 * Returns the info of the item with the smallest key in the tree, or null if
+	 * the tree is empty
+	 */
+	// complexity: O(log n)
+	public String min() {
+		if (root == NIL)
+			return null;
+		int node = root;
+		while (child(node, LEFT) != NIL)
+			node = child(node, LEFT);
+		return info[node];
+	}
+
+	/**
+	 * public String max()
+	 *
+	 * Returns the info of the item with the largest key in the tree, or null if
+	 * the tree is empty
+	 */
+	// complexity: O(log n)
+	public String max() {
+		if (root == NIL)
+			return null;
+		int node = root;
+		while (child(node, RIGHT) != NIL)
+			node = child(node, RIGHT);
+		return info[node];
+	}
+
+	/**
+	 * public int[] keysToArray()
+	 *
+	 * Returns a sorted array which contains all keys in the tree, or an empty
+	 * array if the tree is empty.
+	 */
+	// complexity: O(n)
+	public int[] keysToArray() {
+		int[] array = new int[size()];
+		int[] stack = new int[MAX_HEIGHT];
+		int depth = 0;
+		int location = 0;
+		int node = root;
+		while (node != NIL || depth > 0) {
+			while (node != NIL) {
+				stack[depth++] = node;
+				node = child(node, LEFT);
+			}
+			node = stack[--depth];
+			array[location++] = links[node * STRIDE + KEY];
+			node = child(node, RIGHT);
+		}
+		return array;
+	}
+
+	/**
+	 * public String[] infoToArray()
+	 *
+	 * Returns an array which contains all info in the tree, sorted by their
+	 * respective keys, or an empty array if the tree is empty.
+	 */
+	// complexity: O(n)
+	public String[] infoToArray() {
+		String[] array = new String[size()];
+		int[] stack = new int[MAX_HEIGHT];
+		int depth = 0;
+		int location = 0;
+		int node = root;
+		while (node != NIL || depth > 0) {
+			while (node != NIL) {
+				stack[depth++] = node;
+				node = child(node, LEFT);
+			}
+			node = stack[--depth];
+			array[location++] = info[node];
+			node = child(node, RIGHT);
+		}
+		return array;
+	}
+
+	/**
+	 * public void relayout()
+	 *
+	 * Moves the nodes so that they are stored in preorder, each node followed by
+	 * its left subtree, and drops the free slots. A search then often finds the
+	 * next node in the cache line it already read, which inserts and deletes in
+	 * random order do not give. Worth calling after loading or after many
+	 * updates, before a phase of searches.
+	 */
+	// complexity: O(n)
+	public void relayout() {
+		int n = size();
+		int capacity = Math.max(n + 1, 2);
+		int[] newLinks = new int[STRIDE * capacity];
+		long[] newMeta = new long[capacity];
+		String[] newInfo = new String[capacity];
+		// the preorder walk keeps, for each node still to be copied, the slot of
+		// the copied parent field that has to point to it
+		int[] stack = new int[2 * MAX_HEIGHT];
+		int[] parentField = new int[2 * MAX_HEIGHT];
+		int depth = 0;
+		int next = 1;
+		if (root != NIL) {
+			stack[depth] = root;
+			parentField[depth] = -1;
+			depth++;
+		}
+		while (depth > 0) {
+			depth--;
+			int node = stack[depth];
+			int field = parentField[depth];
+			int slot = next++;
+			if (field >= 0)
+				newLinks[field] = slot;
+			int at = node * STRIDE;
+			newLinks[slot * STRIDE + KEY] = links[at + KEY];
+			newMeta[slot] = meta[node];
+			newInfo[slot] = info[node];
+			// the right son is pushed first so the left one is copied next
+			if (links[at + RIGHT] != NIL) {
+				stack[depth] = links[at + RIGHT];
+				parentField[depth] = slot * STRIDE + RIGHT;
+				depth++;
+			}
+			if (links[at + LEFT] != NIL) {
+				stack[depth] = links[at + LEFT];
+				parentField[depth] = slot * STRIDE + LEFT;
+				depth++;
+			}
+		}
+		links = newLinks;
+		meta = newMeta;
+		info = newInfo;
+		root = n == 0 ? NIL : 1;
+		used = next;
+		free = NIL;
+	}
+
+	/**
+	 * rebalances up the path after a leaf was hung under path[depth - 1]. a son
+	 * whose rank difference drops to 0 is a promotion if its sibling is at 1 and
+	 * a single or double rotation if its sibling is at 2.
+	 */
+	// complexity: O(depth)
+	private int insertRebalance(int depth) {
+		int operations = 0;
+		for (int d = depth - 1; d >= 0; d--) {
+			int node = path[d];
+			int side = sides[d];
+			int other = RIGHT + LEFT - side;
+			if (difference(node, side) == 2) {
+				setDifferences(node, side, 1, difference(node, other));
+				return operations;
+			}
+			if (difference(node, other) == 1) {
+				setDifferences(node, side, 1, 2);
+				operations++;
+				continue;
+			}
+			int son = child(node, side);
+			if (difference(son, side) == 1) {
+				rotate(node, son, side);
+				setDifferences(node, side, 1, 1);
+				setDifferences(son, side, 1, 1);
+				replaceChild(d, son);
+				return operations + 2;
+			}
+			int grandSon = child(son, other);
+			int grandSonSide = difference(grandSon, side);
+			int grandSonOther = difference(grandSon, other);
+			rotate(son, grandSon, other);
+			rotate(node, grandSon, side);
+			setDifferences(son, side, 1, grandSonSide);
+			setDifferences(node, side, grandSonOther, 1);
+			setDifferences(grandSon, side, 1, 1);
+			replaceChild(d, grandSon);
+			return operations + 5;
+		}
+		return operations;
+	}
+
+	/**
+	 * rebalances up the path after the subtree under path[depth - 1] lost a rank.
+	 * a son whose rank difference grows to 3 is fixed by a rotation with its
+	 * sibling, which may lower the subtree again and go on up.
+	 */
+	// complexity: O(depth)
+	private int deleteRebalance(int depth) {
+		int operations = 0;
+		for (int d = depth - 1; d >= 0; d--) {
+			int node = path[d];
+			int side = sides[d];
+			int other = RIGHT + LEFT - side;
+			int otherDifference = difference(node, other);
+			if (difference(node, side) == 1) {
+				if (otherDifference == 1) {
+					setDifferences(node, side, 2, 1);
+					return operations;
+				}
+				// 2, 2: demote
+				setDifferences(node, side, 1, 1);
+				operations++;
+				continue;
+			}
+			// the difference on side becomes 3, the sibling is at 1
+			int sibling = child(node, other);
+			int siblingSide = difference(sibling, side);
+			int siblingOther = difference(sibling, other);
+			if (siblingSide == 1 && siblingOther == 1) {
+				rotate(node, sibling, other);
+				setDifferences(node, side, 2, 1);
+				setDifferences(sibling, side, 1, 2);
+				replaceChild(d, sibling);
+				return operations + 3;
+			}
+			if (siblingOther == 1) {
+				rotate(node, sibling, other);
+				setDifferences(node, side, 1, 1);
+				setDifferences(sibling, side, 1, 1);
+				replaceChild(d, sibling);
+				operations += 3;
+				continue;
+			}
+			int nephew = child(sibling, side);
+			int nephewSide = difference(nephew, side);
+			int nephewOther = difference(nephew, other);
+			rotate(sibling, nephew, side);
+			rotate(node, nephew, other);
+			setDifferences(node, side, 1, nephewSide);
+			setDifferences(sibling, side, nephewOther, 1);
+			setDifferences(nephew, side, 1, 1);
+			replaceChild(d, nephew);
+			operations += 6;
+		}
+		return operations;
+	}
+
+	/**
+	 * rotates son, the son of node on side, above node and fixes both sizes. the
+	 * caller sets the rank differences and hangs son where node was.
+	 */
+	// complexity: O(1)
+	private void rotate(int node, int son, int side) {
+		int other = RIGHT + LEFT - side;
+		int inner = child(son, other);
+		links[node * STRIDE + side] = inner;
+		links[son * STRIDE + other] = node;
+		setSize(node, size(child(node, LEFT)) + size(child(node, RIGHT)) + 1);
+		setSize(son, size(child(son, LEFT)) + size(child(son, RIGHT)) + 1);
+	}
+
+	/**
+	 * makes node the son of path[depth - 1] on the side the path took, or the root
+	 */
+	// complexity: O(1)
+	private void replaceChild(int depth, int node) {
+		if (depth == 0)
+			root = node;
+		else
+			links[path[depth - 1] * STRIDE + sides[depth - 1]] = node;
+	}
+
+	// complexity: O(1)
+	private int child(int node, int side) {
+		return links[node * STRIDE + side];
+	}
+
+	// complexity: O(1)
+	private int size(int node) {
+		return (int) (meta[node] >>> SIZE_SHIFT);
+	}
+
+	// complexity: O(1)
+	private void setSize(int node, int size) {
+		meta[node] = ((long) size << SIZE_SHIFT) | (meta[node] & 0xF);
+	}
+
+	/**
+	 * returns the rank difference between node and its son on side
+	 */
+	// complexity: O(1)
+	private int difference(int node, int side) {
+		return (int) (meta[node] >>> ((RIGHT - side) << 1)) & 3;
+	}
+
+	/**
+	 * sets the rank differences of node to sideDifference on side and
+	 * otherDifference on the other side
+	 */
+	// complexity: O(1)
+	private void setDifferences(int node, int side, int sideDifference, int otherDifference) {
+		int differences = side == LEFT ? sideDifference << 2 | otherDifference
+				: otherDifference << 2 | sideDifference;
+		meta[node] = (meta[node] & ~0xFL) | differences;
+	}
+
+	/**
+	 * returns a slot holding a new leaf, from the free list if possible
+	 */
+	// complexity: O(1) amortized
+	private int allocate(int k, String i) {
+		int node = free;
+		if (node != NIL) {
+			free = links[node * STRIDE + LEFT];
+		} else {
+			if (used == meta.length)
+				grow();
+			node = used++;
+		}
+		int at = node * STRIDE;
+		links[at + KEY] = k;
+		links[at + LEFT] = NIL;
+		links[at + RIGHT] = NIL;
+		meta[node] = LEAF;
+		info[node] = i;
+		return node;
+	}
+
+	/**
+	 * puts the slot of node on the free list
+	 */
+	// complexity: O(1)
+	private void release(int node) {
+		info[node] = null;
+		links[node * STRIDE + LEFT] = free;
+		free = node;
+	}
+
+	// complexity: O(n)
+	private void grow() {
+		int capacity = meta.length + (meta.length >> 1);
+		if (capacity < 0 || capacity > (Integer.MAX_VALUE - 8) / STRIDE)
+			capacity = (Integer.MAX_VALUE - 8) / STRIDE;
+		if (capacity <= meta.length)
+			throw new IllegalStateException("CompactAVLTree is full");
+		links = Arrays.copyOf(links, STRIDE * capacity);
+		meta = Arrays.copyOf(meta, capacity);
+		info = Arrays.copyOf(info, capacity);
+	}
+}
@@ -0,0 +1,861 @@
+import java.util.Comparator;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
+import java.util.stream.StreamSupport;
+
+/**
+ *
+ * ConcurrentAVLTree
+ *
+ * A thread safe AVL Tree with distinct integer keys and info, in the relaxed
+ * balance design of Bronson, Casper, Chafi and Olukotun (A Practical Concurrent
+ * Binary Search Tree, PPoPP 2010).
+ *
+ * Reads take no locks. They go down the tree hand over hand and check the
+ * version of every node they passed: a node's version changes whenever keys
+ * leave its subtree, so a reader that sees an unchanged version knows it did
+ * not miss its key, and otherwise retries from the last node that is still
+ * valid. Writers lock the parent of the place they change, and rebalancing
+ * locks only the nodes of one rotation at a time.
+ *
+ * A delete of a node with two children only clears its info and leaves it in
+ * the tree as a routing node. Routing nodes with less than two children are
+ * unlinked later by the rebalancing. The heights are only hints while other
+ * threads are working, every change fixes them on its way up, so the tree is
+ * an AVL tree again when the writers stop.
+ *
+ * The info of an item may not be null, null marks a routing node.
+ *
+ */
+
+public class ConcurrentAVLTree {
+
+	// version bits: the node is being rotated down, or it left the tree
+	static final long SHRINKING = 1;
+	static final long UNLINKED = 2;
+	// every finished shrink adds this to the version
+	static final long SHRINK_COUNT_INCR = 4;
+
+	// directions of Node.child()
+	static final int LEFT = -1;
+	static final int RIGHT = 1;
+
+	// results of attemptUpdate()
+	static final int UNCHANGED = 0;
+	static final int CHANGED = 1;
+	static final int RETRY = 2;
+
+	// results of nodeCondition() that are not a new height
+	static final int UNLINK_REQUIRED = -1;
+	static final int REBALANCE_REQUIRED = -2;
+	static final int NOTHING_REQUIRED = -3;
+
+	// a read that has to go back up and try again
+	private static final Object RETRY_READ = new Object();
+
+	// how long a reader spins on a shrinking node before blocking on its lock
+	private static final int SPIN_COUNT = 100;
+
+	// the root is the right son of the holder, the holder itself is never
+	// rotated, so its version never changes
+	final Node holder = new Node(Integer.MIN_VALUE, null, null);
+	private final LongAdder size = new LongAdder();
+
+	// ConcurrentAVLTree constructor
+	// complexity: O(1)
+	public ConcurrentAVLTree() {
+	}
+
+	/**
+	 * public boolean empty()
+	 *
+	 * returns true if and only if the tree has no items
+	 */
+	// complexity: O(log n)
+	public boolean empty() {
+		return boundNode(Integer.MIN_VALUE, RIGHT) == null;
+	}
+
+	/**
+	 * public int size()
+	 *
+	 * returns the number of items. While writers are working it is the size at
+	 * some moment of the call.
+	 */
+	// complexity: O(number of threads)
+	public int size() {
+		return size.intValue();
+	}
+
+	/**
+	 * public String search(int k)
+	 *
+	 * returns the info of the item with key k, or null if there is none. Takes no
+	 * locks.
+	 */
+	// complexity: O(log n)
+	public String search(int k) {
+		while (true) {
+			Object result = attemptGet(k, holder, RIGHT, holder.version);
+			if (result != RETRY_READ)
+				return (String) result;
+		}
+	}
+
+	/**
+	 * public boolean insert(int k, String i)
+	 *
+	 * inserts the item (k, i) if there is no item with key k. Returns true if the
+	 * item was inserted.
+	 *
+	 * precondition: i != null, otherwise IllegalArgumentException is thrown
+	 */
+	// complexity: O(log n)
+	public boolean insert(int k, String i) {
+		if (i == null)
+			throw new IllegalArgumentException("info must not be null");
+		return update(k, i);
+	}
+
+	/**
+	 * public boolean delete(int k)
+	 *
+	 * deletes the item with key k. Returns true if there was such an item.
+	 */
+	// complexity: O(log n)
+	public boolean delete(int k) {
+		return update(k, null);
+	}
+
+	/**
+	 * public String min()
+	 *
+	 * returns the info of the item with the smallest key, or null if the tree is
+	 * empty. Takes no locks.
+	 */
+	// complexity: O(log n)
+	public String min() {
+		return boundInfo(Integer.MIN_VALUE, RIGHT);
+	}
+
+	/**
+	 * public String max()
+	 *
+	 * returns the info of the item with the largest key, or null if the tree is
+	 * empty. Takes no locks.
+	 */
+	// complexity: O(log n)
+	public String max() {
+		return boundInfo(Integer.MAX_VALUE, LEFT);
+	}
+
+	/**
+	 * public IntStream keys(int lo, int hi)
+	 *
+	 * returns the keys k with lo <= k < hi in increasing order. The stream is
+	 * weakly consistent: every key that is in the range for the whole walk is
+	 * returned, a key inserted or deleted meanwhile may or may not be. Each key
+	 * is found by a lock free search for the smallest key above the last one.
+	 */
+	// complexity: O(log n) per key
+	public IntStream keys(int lo, int hi) {
+		return StreamSupport.intStream(new KeySpliterator(lo, hi), false);
+	}
+
+	/**
+	 * the item of the first node at or after k in direction dir, the lowest for
+	 * RIGHT and the highest for LEFT
+	 */
+	// complexity: O(log n)
+	private String boundInfo(int k, int dir) {
+		while (true) {
+			Node node = boundNode(k, dir);
+			if (node == null)
+				return null;
+			String info = node.value;
+			// deleted since it was found, look again
+			if (info != null)
+				return info;
+		}
+	}
+
+	/**
+	 * returns the node of the smallest key >= k (dir == RIGHT) or of the largest
+	 * key <= k (dir == LEFT), or null
+	 */
+	// complexity: O(log n)
+	Node boundNode(int k, int dir) {
+		while (true) {
+			Object result = attemptBound(k, dir, holder, RIGHT, holder.version);
+			if (result != RETRY_READ)
+				return (Node) result;
+		}
+	}
+
+	/**
+	 * searches k in the subtree under parent.child(dir). returns the info, null if
+	 * k is missing, or RETRY_READ if parent changed after parentVersion was read.
+	 */
+	// complexity: O(log n)
+	private static Object attemptGet(int k, Node parent, int dir, long parentVersion) {
+		while (true) {
+			Node child = parent.child(dir);
+			if (parent.version != parentVersion)
+				return RETRY_READ;
+			if (child == null)
+				return null;
+			int cmp = Integer.compare(k, child.key);
+			if (cmp == 0)
+				return child.value;
+			long childVersion = child.version;
+			if (isShrinkingOrUnlinked(childVersion)) {
+				waitUntilNotChanging(child);
+			} else if (child == parent.child(dir)) {
+				// the edge parent -> child was still there when the version of
+				// child was read, so child covers k
+				if (parent.version != parentVersion)
+					return RETRY_READ;
+				Object result = attemptGet(k, child, cmp, childVersion);
+				if (result != RETRY_READ)
+					return result;
+			}
+		}
+	}
+
+	/**
+	 * finds the first node with info in the subtree under parent.child(dir)
+	 * whose key is at or after k in direction bound. returns the node, null, or
+	 * RETRY_READ if parent changed after parentVersion was read.
+	 */
+	// complexity: O(log n)
+	private static Object attemptBound(int k, int bound, Node parent, int dir, long parentVersion) {
+		while (true) {
+			Node child = parent.child(dir);
+			if (parent.version != parentVersion)
+				return RETRY_READ;
+			if (child == null)
+				return null;
+			long childVersion = child.version;
+			if (isShrinkingOrUnlinked(childVersion)) {
+				waitUntilNotChanging(child);
+				continue;
+			}
+			if (child != parent.child(dir))
+				continue;
+			if (parent.version != parentVersion)
+				return RETRY_READ;
+			int cmp = Integer.compare(child.key, k) * bound;
+			Object result = null;
+			// child is past k: the closest key may be on the near side of it
+			if (cmp > 0)
+				result = attemptBound(k, bound, child, -bound, childVersion);
+			if (result == null && cmp >= 0) {
+				if (child.value != null)
+					result = child.version == childVersion ? child : RETRY_READ;
+				else
+					result = attemptBound(k, bound, child, bound, childVersion);
+			} else if (cmp < 0) {
+				result = attemptBound(k, bound, child, bound, childVersion);
+			}
+			if (result != RETRY_READ)
+				return result;
+		}
+	}
+
+	/**
+	 * inserts (k, info), or deletes k if info is null. returns true if the tree
+	 * changed.
+	 */
+	// complexity: O(log n)
+	private boolean update(int k, String info) {
+		while (true) {
+			int result = attemptUpdate(k, info, holder, holder.version);
+			if (result == RETRY)
+				continue;
+			if (result == CHANGED) {
+				if (info != null)
+					size.increment();
+				else
+					size.decrement();
+			}
+			return result == CHANGED;
+		}
+	}
+
+	/**
+	 * inserts or deletes k in the subtree of node, node's version was nodeVersion.
+	 * returns CHANGED, UNCHANGED or RETRY.
+	 */
+	// complexity: O(log n)
+	private int attemptUpdate(int k, String info, Node node, long nodeVersion) {
+		int dir = node == holder ? RIGHT : Integer.compare(k, node.key);
+		while (true) {
+			Node child = node.child(dir);
+			if (node.version != nodeVersion)
+				return RETRY;
+			if (child == null) {
+				// k is missing
+				if (info == null)
+					return UNCHANGED;
+				Node damaged;
+				synchronized (node) {
+					if (node.version != nodeVersion)
+						return RETRY;
+					// someone else inserted here first, look again
+					if (node.child(dir) != null)
+						continue;
+					node.setChild(dir, new Node(k, info, node));
+					damaged = fixHeight_nl(node);
+				}
+				fixHeightAndRebalance(damaged);
+				return CHANGED;
+			}
+			if (child.key == k)
+				return attemptNodeUpdate(info, node, child);
+			long childVersion = child.version;
+			if (isShrinkingOrUnlinked(childVersion)) {
+				waitUntilNotChanging(child);
+			} else if (child == node.child(dir)) {
+				if (node.version != nodeVersion)
+					return RETRY;
+				int result = attemptUpdate(k, info, child, childVersion);
+				if (result != RETRY)
+					return result;
+			}
+		}
+	}
+
+	/**
+	 * inserts info into the node of its key, or deletes it if info is null. A node
+	 * with less than two sons is unlinked from parent, a node with two sons
+	 * becomes a routing node.
+	 */
+	// complexity: O(log n)
+	private int attemptNodeUpdate(String info, Node parent, Node node) {
+		if (info == null) {
+			if (node.value == null)
+				return UNCHANGED;
+			if (node.left == null || node.right == null) {
+				Node damaged;
+				synchronized (parent) {
+					if (isUnlinked(parent.version) || node.parent != parent)
+						return RETRY;
+					synchronized (node) {
+						if (node.value == null)
+							return UNCHANGED;
+						if (!attemptUnlink_nl(parent, node))
+							return RETRY;
+					}
+					damaged = fixHeight_nl(parent);
+				}
+				fixHeightAndRebalance(damaged);
+				return CHANGED;
+			}
+		}
+		synchronized (node) {
+			if (isUnlinked(node.version))
+				return RETRY;
+			if (info == null) {
+				if (node.value == null)
+					return UNCHANGED;
+				// lost a son meanwhile, it has to be unlinked with the parent locked
+				if (node.left == null || node.right == null)
+					return RETRY;
+			} else if (node.value != null) {
+				return UNCHANGED;
+			}
+			node.value = info;
+			return CHANGED;
+		}
+	}
+
+	/**
+	 * removes node, which has at most one son, from under parent. both are locked.
+	 * returns false if they are no longer in that shape.
+	 */
+	// complexity: O(1)
+	private static boolean attemptUnlink_nl(Node parent, Node node) {
+		Node parentLeft = parent.left;
+		Node parentRight = parent.right;
+		if (parentLeft != node && parentRight != node)
+			return false;
+		Node left = node.left;
+		Node right = node.right;
+		if (left != null && right != null)
+			return false;
+		Node splice = left != null ? left : right;
+		if (parentLeft == node)
+			parent.left = splice;
+		else
+			parent.right = splice;
+		if (splice != null)
+			splice.parent = parent;
+		node.version = UNLINKED;
+		node.value = null;
+		return true;
+	}
+
+	/**
+	 * walks up from node fixing heights, unlinking routing nodes and rotating,
+	 * locking one parent and son at a time. A rotation can hand back a node below
+	 * it that needs work first, and the heights above the rotation are only fixed
+	 * on the way up from there, so after a rotation the walk goes on to the root
+	 * instead of stopping at the first node that needs nothing.
+	 */
+	// complexity: O(log n)
+	private void fixHeightAndRebalance(Node node) {
+		boolean toRoot = false;
+		while (node != null && node != holder) {
+			if (isUnlinked(node.version))
+				return;
+			int condition = nodeCondition(node);
+			Node next;
+			if (condition == NOTHING_REQUIRED) {
+				next = null;
+			} else if (condition != UNLINK_REQUIRED && condition != REBALANCE_REQUIRED) {
+				synchronized (node) {
+					next = fixHeight_nl(node);
+				}
+			} else {
+				toRoot = true;
+				Node parent = node.parent;
+				// if the parent changed meanwhile, look at node again
+				next = node;
+				synchronized (parent) {
+					if (!isUnlinked(parent.version) && node.parent == parent) {
+						synchronized (node) {
+							next = rebalance_nl(parent, node);
+						}
+					}
+				}
+			}
+			if (next == null && toRoot)
+				next = node.parent;
+			node = next;
+		}
+	}
+
+	/**
+	 * returns what node needs: UNLINK_REQUIRED, REBALANCE_REQUIRED, its correct
+	 * height, or NOTHING_REQUIRED. reads without locks, so it is only a hint.
+	 */
+	// complexity: O(1)
+	private static int nodeCondition(Node node) {
+		Node left = node.left;
+		Node right = node.right;
+		if ((left == null || right == null) && node.value == null)
+			return UNLINK_REQUIRED;
+		int height = node.height;
+		int leftHeight = height(left);
+		int rightHeight = height(right);
+		int newHeight = 1 + Math.max(leftHeight, rightHeight);
+		int balance = leftHeight - rightHeight;
+		if (balance < -1 || balance > 1)
+			return REBALANCE_REQUIRED;
+		return height != newHeight ? newHeight : NOTHING_REQUIRED;
+	}
+
+	/**
+	 * fixes the height of the locked node. returns the next node to look at, or
+	 * null if nothing above changes.
+	 */
+	// complexity: O(1)
+	private static Node fixHeight_nl(Node node) {
+		int condition = nodeCondition(node);
+		switch (condition) {
+		case REBALANCE_REQUIRED:
+		case UNLINK_REQUIRED:
+			return node;
+		case NOTHING_REQUIRED:
+			return null;
+		default:
+			node.height = condition;
+			return node.parent;
+		}
+	}
+
+	/**
+	 * unlinks or rotates the locked node under its locked parent. returns the next
+	 * node to look at, or null.
+	 */
+	// complexity: O(1)
+	private static Node rebalance_nl(Node parent, Node node) {
+		Node left = node.left;
+		Node right = node.right;
+		if ((left == null || right == null) && node.value == null) {
+			if (attemptUnlink_nl(parent, node))
+				return fixHeight_nl(parent);
+			return node;
+		}
+		int height = node.height;
+		int leftHeight = height(left);
+		int rightHeight = height(right);
+		int newHeight = 1 + Math.max(leftHeight, rightHeight);
+		int balance = leftHeight - rightHeight;
+		if (balance > 1)
+			return rebalanceToRight_nl(parent, node, left, rightHeight);
+		if (balance < -1)
+			return rebalanceToLeft_nl(parent, node, right, leftHeight);
+		if (newHeight != height) {
+			node.height = newHeight;
+			return fixHeight_nl(parent);
+		}
+		return null;
+	}
+
+	/**
+	 * node is too high on the left. locks its left son (and grandson for a double
+	 * rotation) and rotates right.
+	 */
+	// complexity: O(1)
+	private static Node rebalanceToRight_nl(Node parent, Node node, Node left, int rightHeight) {
+		synchronized (left) {
+			int leftHeight = left.height;
+			if (leftHeight - rightHeight <= 1)
+				return node;
+			Node leftRight = left.right;
+			int leftLeftHeight = height(left.left);
+			int leftRightHeight = height(leftRight);
+			if (leftLeftHeight >= leftRightHeight)
+				return rotateRight_nl(parent, node, left, rightHeight, leftLeftHeight, leftRight, leftRightHeight);
+			synchronized (leftRight) {
+				leftRightHeight = leftRight.height;
+				if (leftLeftHeight >= leftRightHeight)
+					return rotateRight_nl(parent, node, left, rightHeight, leftLeftHeight, leftRight, leftRightHeight);
+				int leftRightLeftHeight = height(leftRight.left);
+				int balance = leftLeftHeight - leftRightLeftHeight;
+				if (balance >= -1 && balance <= 1)
+					return rotateRightOverLeft_nl(parent, node, left, rightHeight, leftLeftHeight, leftRight,
+							leftRightLeftHeight);
+			}
+			// the double rotation would leave left unbalanced, rotate it first
+			return rebalanceToLeft_nl(node, left, leftRight, leftLeftHeight);
+		}
+	}
+
+	/**
+	 * node is too high on the right. mirror of rebalanceToRight_nl.
+	 */
+	// complexity: O(1)
+	private static Node rebalanceToLeft_nl(Node parent, Node node, Node right, int leftHeight) {
+		synchronized (right) {
+			int rightHeight = right.height;
+			if (leftHeight - rightHeight >= -1)
+				return node;
+			Node rightLeft = right.left;
+			int rightLeftHeight = height(rightLeft);
+			int rightRightHeight = height(right.right);
+			if (rightRightHeight >= rightLeftHeight)
+				return rotateLeft_nl(parent, node, leftHeight, right, rightLeft, rightLeftHeight, rightRightHeight);
+			synchronized (rightLeft) {
+				rightLeftHeight = rightLeft.height;
+				if (rightRightHeight >= rightLeftHeight)
+					return rotateLeft_nl(parent, node, leftHeight, right, rightLeft, rightLeftHeight,
+							rightRightHeight);
+				int rightLeftRightHeight = height(rightLeft.right);
+				int balance = rightRightHeight - rightLeftRightHeight;
+				if (balance >= -1 && balance <= 1)
+					return rotateLeftOverRight_nl(parent, node, leftHeight, right, rightLeft, rightRightHeight,
+							rightLeftRightHeight);
+			}
+			return rebalanceToRight_nl(node, right, rightLeft, rightRightHeight);
+		}
+	}
+
+	/**
+	 * lifts the left son above node, all three are locked. returns the node that
+	 * may still need work.
+	 */
+	// complexity: O(1)
+	private static Node rotateRight_nl(Node parent, Node node, Node left, int rightHeight, int leftLeftHeight,
+			Node leftRight, int leftRightHeight) {
+		long nodeVersion = node.version;
+		Node parentLeft = parent.left;
+		node.version = beginChange(nodeVersion);
+		node.left = leftRight;
+		if (leftRight != null)
+			leftRight.parent = node;
+		left.right = node;
+		node.parent = left;
+		if (parentLeft == node)
+			parent.left = left;
+		else
+			parent.right = left;
+		left.parent = parent;
+		int newHeight = 1 + Math.max(leftRightHeight, rightHeight);
+		node.height = newHeight;
+		left.height = 1 + Math.max(leftLeftHeight, newHeight);
+		node.version = endChange(nodeVersion);
+		int nodeBalance = leftRightHeight - rightHeight;
+		if (nodeBalance < -1 || nodeBalance > 1)
+			return node;
+		if ((leftRight == null || rightHeight == 0) && node.value == null)
+			return node;
+		int leftBalance = leftLeftHeight - newHeight;
+		if (leftBalance < -1 || leftBalance > 1)
+			return left;
+		if (leftLeftHeight == 0 && left.value == null)
+			return left;
+		return fixHeight_nl(parent);
+	}
+
+	/**
+	 * lifts the right son above node, mirror of rotateRight_nl
+	 */
+	// complexity: O(1)
+	private static Node rotateLeft_nl(Node parent, Node node, int leftHeight, Node right, Node rightLeft,
+			int rightLeftHeight, int rightRightHeight) {
+		long nodeVersion = node.version;
+		Node parentLeft = parent.left;
+		node.version = beginChange(nodeVersion);
+		node.right = rightLeft;
+		if (rightLeft != null)
+			rightLeft.parent = node;
+		right.left = node;
+		node.parent = right;
+		if (parentLeft == node)
+			parent.left = right;
+		else
+			parent.right = right;
+		right.parent = parent;
+		int newHeight = 1 + Math.max(leftHeight, rightLeftHeight);
+		node.height = newHeight;
+		right.height = 1 + Math.max(newHeight, rightRightHeight);
+		node.version = endChange(nodeVersion);
+		int nodeBalance = leftHeight - rightLeftHeight;
+		if (nodeBalance < -1 || nodeBalance > 1)
+			return node;
+		if ((rightLeft == null || leftHeight == 0) && node.value == null)
+			return node;
+		int rightBalance = newHeight - rightRightHeight;
+		if (rightBalance < -1 || rightBalance > 1)
+			return right;
+		if (rightRightHeight == 0 && right.value == null)
+			return right;
+		return fixHeight_nl(parent);
+	}
+
+	/**
+	 * double rotation that lifts left.right above node, all four are locked
+	 */
+	// complexity: O(1)
+	private static Node rotateRightOverLeft_nl(Node parent, Node node, Node left, int rightHeight,
+			int leftLeftHeight, Node leftRight, int leftRightLeftHeight) {
+		long nodeVersion = node.version;
+		long leftVersion = left.version;
+		Node parentLeft = parent.left;
+		Node leftRightLeft = leftRight.left;
+		Node leftRightRight = leftRight.right;
+		int leftRightRightHeight = height(leftRightRight);
+		node.version = beginChange(nodeVersion);
+		left.version = beginChange(leftVersion);
+		node.left = leftRightRight;
+		if (leftRightRight != null)
+			leftRightRight.parent = node;
+		left.right = leftRightLeft;
+		if (leftRightLeft != null)
+			leftRightLeft.parent = left;
+		leftRight.left = left;
+		left.parent = leftRight;
+		leftRight.right = node;
+		node.parent = leftRight;
+		if (parentLeft == node)
+			parent.left = leftRight;
+		else
+			parent.right = leftRight;
+		leftRight.parent = parent;
+		int newHeight = 1 + Math.max(leftRightRightHeight, rightHeight);
+		node.height = newHeight;
+		int newLeftHeight = 1 + Math.max(leftLeftHeight, leftRightLeftHeight);
+		left.height = newLeftHeight;
+		leftRight.height = 1 + Math.max(newLeftHeight, newHeight);
+		node.version = endChange(nodeVersion);
+		left.version = endChange(leftVersion);
+		int nodeBalance = leftRightRightHeight - rightHeight;
+		if (nodeBalance < -1 || nodeBalance > 1)
+			return node;
+		if ((leftRightRight == null || rightHeight == 0) && node.value == null)
+			return node;
+		// a routing node that lost a son has to be unlinked next
+		if ((leftRightLeft == null || leftLeftHeight == 0) && left.value == null)
+			return left;
+		int topBalance = newLeftHeight - newHeight;
+		if (topBalance < -1 || topBalance > 1)
+			return leftRight;
+		return fixHeight_nl(parent);
+	}
+
+	/**
+	 * double rotation that lifts right.left above node, mirror of
+	 * rotateRightOverLeft_nl
+	 */
+	// complexity: O(1)
+	private static Node rotateLeftOverRight_nl(Node parent, Node node, int leftHeight, Node right,
+			Node rightLeft, int rightRightHeight, int rightLeftRightHeight) {
+		long nodeVersion = node.version;
+		long rightVersion = right.version;
+		Node parentLeft = parent.left;
+		Node rightLeftLeft = rightLeft.left;
+		Node rightLeftRight = rightLeft.right;
+		int rightLeftLeftHeight = height(rightLeftLeft);
+		node.version = beginChange(nodeVersion);
+		right.version = beginChange(rightVersion);
+		node.right = rightLeftLeft;
+		if (rightLeftLeft != null)
+			rightLeftLeft.parent = node;
+		right.left = rightLeftRight;
+		if (rightLeftRight != null)
+			rightLeftRight.parent = right;
+		rightLeft.right = right;
+		right.parent = rightLeft;
+		rightLeft.left = node;
+		node.parent = rightLeft;
+		if (parentLeft == node)
+			parent.left = rightLeft;
+		else
+			parent.right = rightLeft;
+		rightLeft.parent = parent;
+		int newHeight = 1 + Math.max(leftHeight, rightLeftLeftHeight);
+		node.height = newHeight;
+		int newRightHeight = 1 + Math.max(rightLeftRightHeight, rightRightHeight);
+		right.height = newRightHeight;
+		rightLeft.height = 1 + Math.max(newHeight, newRightHeight);
+		node.version = endChange(nodeVersion);
+		right.version = endChange(rightVersion);
+		int nodeBalance = leftHeight - rightLeftLeftHeight;
+		if (nodeBalance < -1 || nodeBalance > 1)
+			return node;
+		if ((rightLeftLeft == null || leftHeight == 0) && node.value == null)
+			return node;
+		if ((rightLeftRight == null || rightRightHeight == 0) && right.value == null)
+			return right;
+		int topBalance = newHeight - newRightHeight;
+		if (topBalance < -1 || topBalance > 1)
+			return rightLeft;
+		return fixHeight_nl(parent);
+	}
+
+	/**
+	 * spins while node is being rotated, then blocks on its lock, which the
+	 * rotating thread holds
+	 */
+	// complexity: O(1) expected
+	private static void waitUntilNotChanging(Node node) {
+		long version = node.version;
+		if ((version & SHRINKING) == 0)
+			return;
+		for (int i = 0; i < SPIN_COUNT; i++) {
+			if (node.version != version)
+				return;
+			Thread.onSpinWait();
+		}
+		synchronized (node) {
+		}
+	}
+
+	// complexity: O(1)
+	private static int height(Node node) {
+		return node == null ? 0 : node.height;
+	}
+
+	// complexity: O(1)
+	private static boolean isUnlinked(long version) {
+		return (version & UNLINKED) != 0;
+	}
+
+	// complexity: O(1)
+	private static boolean isShrinkingOrUnlinked(long version) {
+		return (version & (SHRINKING | UNLINKED)) != 0;
+	}
+
+	// complexity: O(1)
+	private static long beginChange(long version) {
+		return version | SHRINKING;
+	}
+
+	// complexity: O(1)
+	private static long endChange(long version) {
+		return (version & ~SHRINKING) + SHRINK_COUNT_INCR;
+	}
+
+	/**
+	 * Walks the keys of [lo, hi) one lock free bound search at a time.
+	 */
+	private final class KeySpliterator extends Spliterators.AbstractIntSpliterator {
+
+		private final int hi;
+		private int next;
+		private boolean done;
+
+		// complexity: O(1)
+		KeySpliterator(int lo, int hi) {
+			super(Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.SORTED | Spliterator.DISTINCT
+					| Spliterator.NONNULL);
+			this.hi = hi;
+			this.next = lo;
+			this.done = lo >= hi;
+		}
+
+		// complexity: O(log n)
+		@Override
+		public boolean tryAdvance(IntConsumer action) {
+			if (done)
+				return false;
+			Node node = boundNode(next, RIGHT);
+			if (node == null || node.key >= hi) {
+				done = true;
+				return false;
+			}
+			// node.key < hi, so this does not overflow
+			next = node.key + 1;
+			action.accept(node.key);
+			return true;
+		}
+
+		@Override
+		public Comparator<? super Integer> getComparator() {
+			return null;
+		}
+	}
+
+	/**
+	 * A node of the tree. A leaf has height 1 and a missing son is null. Every
+	 * field but the key can change under a reader, so all are volatile and writes
+	 * happen with the node's lock held.
+	 */
+	static final class Node {
+
+		final int key;
+		volatile String value;
+		volatile int height;
+		volatile long version;
+		volatile Node parent;
+		volatile Node left;
+		volatile Node right;
+
+		// Node constructor, a new leaf
+		// complexity: O(1)
+		Node(int key, String value, Node parent) {
+			this.key = key;
+			this.value = value;
+			this.height = 1;
+			this.parent = parent;
+		}
+
+		// complexity: O(1)
+		Node child(int dir) {
+			return dir < 0 ? left : right;
+		}
+
+		// complexity: O(1)
+		void setChild(int dir, Node node) {
+			if (dir < 0)
+				left = node;
+			else
+				right = node;
+		}
+	}
+}
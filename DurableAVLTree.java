@@ -0,0 +1,690 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ *
+ * DurableAVLTree
+ *
+ * An AVLTree whose changes survive a crash. insert, delete, split and join
+ * change the tree, append a record to a write-ahead log and return once the
+ * record is on disk. Writers that arrive while the log is being synced wait for
+ * the next sync together, so one fsync commits a whole group of them.
+ *
+ * checkpoint() writes the tree as a snapshot (see AVLTree.writeTo) and starts
+ * an empty log. open() loads the newest snapshot and replays its log. A record
+ * that a crash cut short, or that fails its checksum, ends the log: it and
+ * anything after it is cut off.
+ *
+ * The directory holds snapshot-g.avl and wal-g.log of the current generation
+ * g, the log has the changes made since the snapshot. Generation 0 has no
+ * snapshot.
+ *
+ * A change can be seen by other threads a little before it is durable, reads
+ * do not wait for the log.
+ *
+ */
+
+public class DurableAVLTree implements Closeable {
+
+	static final int LOG_MAGIC = 0x574C5641; // "AVLW" little endian
+	static final int LOG_VERSION = 1;
+	static final int LOG_HEADER = 8;
+	// a record starts with the length and the CRC32 of its type and payload
+	static final int RECORD_HEADER = 8;
+
+	// record types, each followed by a key
+	static final byte INSERT = 1; // then the info
+	static final byte DELETE = 2;
+	static final byte SPLIT = 3;
+	static final byte JOIN = 4; // then the info, the number of items of t and the items
+
+	private final Path directory;
+	// the fields below are guarded by the tree
+	private AVLTree tree;
+	private long generation;
+	private FileChannel log;
+	// records that are not written to the log yet
+	private ByteBuffer pending = newBuffer(1 << 16);
+	private ByteBuffer spare = newBuffer(1 << 16);
+	// number of records appended so far
+	private long appended;
+	private boolean closed;
+	private final CRC32 crc = new CRC32();
+	// held while writing the log or switching to a new one, before the tree's lock
+	private final Object ioLock = new Object();
+	// guards durable and syncing
+	private final Object commitLock = new Object();
+	// number of records known to be on disk
+	private long durable;
+	private boolean syncing;
+	private volatile IOException failure;
+
+	// complexity: O(1)
+	private DurableAVLTree(Path directory, AVLTree tree, long generation, FileChannel log) {
+		this.directory = directory;
+		this.tree = tree;
+		this.generation = generation;
+		this.log = log;
+	}
+
+	/**
+	 * public static DurableAVLTree open(Path directory) throws IOException
+	 *
+	 * opens the tree kept in directory, creating an empty one if there is none.
+	 * Loads the newest snapshot, replays its log and deletes the files of older
+	 * generations.
+	 */
+	// complexity: O(n + size of the log)
+	public static DurableAVLTree open(Path directory) throws IOException {
+		Files.createDirectories(directory);
+		long generation = 0;
+		try (DirectoryStream<Path> snapshots = Files.newDirectoryStream(directory, "snapshot-*.avl")) {
+			for (Path snapshot : snapshots)
+				generation = Math.max(generation, generationOf(snapshot));
+		}
+		AVLTree tree = generation == 0 ? new AVLTree() : AVLTree.mapFrom(snapshotPath(directory, generation));
+		FileChannel log = FileChannel.open(logPath(directory, generation), StandardOpenOption.CREATE,
+				StandardOpenOption.READ, StandardOpenOption.WRITE);
+		DurableAVLTree durable = new DurableAVLTree(directory, tree, generation, log);
+		try {
+			durable.replay();
+			durable.deleteOlderThan(generation);
+		} catch (IOException | RuntimeException e) {
+			log.close();
+			throw e;
+		}
+		return durable;
+	}
+
+	/**
+	 * public int insert(int k, String i) throws IOException
+	 *
+	 * inserts the item (k, i) like AVLTree.insert and returns once it is in the
+	 * log on disk. Returns -1 and logs nothing if k is already in the tree.
+	 */
+	// complexity: O(log n) plus waiting for the next sync
+	public int insert(int k, String i) throws IOException {
+		int operations;
+		long sequence;
+		synchronized (this) {
+			checkWritable();
+			operations = tree.insert(k, i);
+			if (operations != -1) {
+				byte[] info = encode(i);
+				int start = beginRecord(INSERT, k, infoLength(info));
+				putInfo(info);
+				endRecord(start);
+			}
+			sequence = appended;
+		}
+		sync(sequence);
+		return operations;
+	}
+
+	/**
+	 * public int delete(int k) throws IOException
+	 *
+	 * deletes the item with key k like AVLTree.delete and returns once the delete
+	 * is in the log on disk. Returns -1 and logs nothing if k is not in the tree.
+	 */
+	// complexity: O(log n) plus waiting for the next sync
+	public int delete(int k) throws IOException {
+		int operations;
+		long sequence;
+		synchronized (this) {
+			checkWritable();
+			operations = tree.delete(k);
+			if (operations != -1)
+				endRecord(beginRecord(DELETE, k, 0));
+			sequence = appended;
+		}
+		sync(sequence);
+		return operations;
+	}
+
+	/**
+	 * public AVLTree split(int x) throws IOException
+	 *
+	 * splits the tree at x like AVLTree.split. The tree keeps the keys smaller
+	 * than x, the keys larger than x are returned in a plain AVLTree that is not
+	 * logged any more. The item with key x, if there is one, is dropped.
+	 */
+	// complexity: O(log n) plus waiting for the next sync
+	public AVLTree split(int x) throws IOException {
+		AVLTree above;
+		long sequence;
+		synchronized (this) {
+			checkWritable();
+			AVLTree[] parts = tree.split(x);
+			tree = parts[0];
+			above = parts[1];
+			endRecord(beginRecord(SPLIT, x, 0));
+			sequence = appended;
+		}
+		sync(sequence);
+		return above;
+	}
+
+	/**
+	 * public int join(int k, String i, AVLTree t) throws IOException
+	 *
+	 * joins the item (k, i) and t with the tree like AVLTree.join and returns its
+	 * cost. The log gets every item of t, so this takes O(|t|). t is left empty.
+	 *
+	 * precondition: keys(t) < k < keys() or keys() < k < keys(t), otherwise
+	 * IllegalArgumentException is thrown
+	 */
+	// complexity: O(|t| + log n) plus waiting for the next sync
+	public int join(int k, String i, AVLTree t) throws IOException {
+		int cost;
+		long sequence;
+		synchronized (this) {
+			checkWritable();
+			if (t == tree)
+				throw new IllegalArgumentException("cannot join a tree with itself");
+			int[] keys = t.keysToArray();
+			String[] infos = t.infoToArray();
+			checkJoinOrder(k, keys);
+			byte[] info = encode(i);
+			byte[][] encoded = new byte[infos.length][];
+			long length = infoLength(info) + 4L;
+			for (int j = 0; j < infos.length; j++) {
+				encoded[j] = encode(infos[j]);
+				length += 4 + infoLength(encoded[j]);
+			}
+			if (length > Integer.MAX_VALUE - RECORD_HEADER - 5)
+				throw new IllegalArgumentException("t is too large for one log record");
+			cost = tree.join(tree.createNode(k, i), t);
+			int start = beginRecord(JOIN, k, (int) length);
+			putInfo(info);
+			pending.putInt(keys.length);
+			for (int j = 0; j < keys.length; j++) {
+				pending.putInt(keys[j]);
+				putInfo(encoded[j]);
+			}
+			endRecord(start);
+			sequence = appended;
+		}
+		sync(sequence);
+		return cost;
+	}
+
+	/**
+	 * public void checkpoint() throws IOException
+	 *
+	 * writes the tree to a new snapshot, starts an empty log and deletes the old
+	 * snapshot and log. Writers wait while the snapshot is written.
+	 */
+	// complexity: O(n)
+	public void checkpoint() throws IOException {
+		synchronized (ioLock) {
+			long upTo;
+			synchronized (this) {
+				checkWritable();
+				writePending();
+				long next = generation + 1;
+				tree.writeTo(snapshotPath(directory, next));
+				FileChannel nextLog = FileChannel.open(logPath(directory, next), StandardOpenOption.CREATE,
+						StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+				try {
+					writeLogHeader(nextLog);
+					syncDirectory();
+				} catch (IOException e) {
+					nextLog.close();
+					throw e;
+				}
+				log.close();
+				log = nextLog;
+				generation = next;
+				upTo = appended;
+				deleteOlderThan(next);
+			}
+			markDurable(upTo);
+		}
+	}
+
+	/**
+	 * public synchronized String search(int k)
+	 *
+	 * returns the info of the item with key k, or null if there is none
+	 */
+	// complexity: O(log n)
+	public synchronized String search(int k) {
+		return tree.search(k);
+	}
+
+	/**
+	 * public synchronized boolean empty()
+	 *
+	 * returns true if and only if the tree is empty
+	 */
+	// complexity: O(1)
+	public synchronized boolean empty() {
+		return tree.empty();
+	}
+
+	/**
+	 * public synchronized int size()
+	 *
+	 * returns the number of items in the tree
+	 */
+	// complexity: O(1)
+	public synchronized int size() {
+		return tree.size();
+	}
+
+	/**
+	 * public synchronized int[] keysToArray()
+	 *
+	 * returns a sorted array of the keys in the tree
+	 */
+	// complexity: O(n)
+	public synchronized int[] keysToArray() {
+		return tree.keysToArray();
+	}
+
+	/**
+	 * public synchronized String[] infoToArray()
+	 *
+	 * returns the info of the items in the tree sorted by their keys
+	 */
+	// complexity: O(n)
+	public synchronized String[] infoToArray() {
+		return tree.infoToArray();
+	}
+
+	/**
+	 * public void close() throws IOException
+	 *
+	 * syncs the log and closes it. Later writes throw IllegalStateException.
+	 */
+	// complexity: O(size of the records not synced yet)
+	public void close() throws IOException {
+		synchronized (ioLock) {
+			synchronized (this) {
+				if (closed)
+					return;
+				closed = true;
+				try {
+					if (failure == null)
+						writePending();
+				} finally {
+					log.close();
+				}
+			}
+			markDurable(appended);
+		}
+	}
+
+	/**
+	 * reads the log from the start and applies its records to the tree. the log
+	 * is cut after the last whole record whose checksum matches.
+	 */
+	// complexity: O(size of the log)
+	private void replay() throws IOException {
+		long length = log.size();
+		LogReader reader = new LogReader(log);
+		if (!reader.ensure(LOG_HEADER)) {
+			log.truncate(0);
+			writeLogHeader(log);
+			return;
+		}
+		if (reader.buffer.getInt() != LOG_MAGIC)
+			throw new IOException(logPath(directory, generation) + " is not a log");
+		int version = reader.buffer.getInt();
+		if (version != LOG_VERSION)
+			throw new IOException(logPath(directory, generation) + " has log version " + version + ", expected "
+					+ LOG_VERSION);
+		long position = LOG_HEADER;
+		while (reader.ensure(RECORD_HEADER)) {
+			int at = reader.buffer.position();
+			int recordLength = reader.buffer.getInt(at);
+			int expected = reader.buffer.getInt(at + 4);
+			if (recordLength < 1 || recordLength > length - position - RECORD_HEADER
+					|| !reader.ensure(RECORD_HEADER + recordLength))
+				break;
+			at = reader.buffer.position();
+			ByteBuffer record = reader.buffer.slice(at + RECORD_HEADER, recordLength).order(ByteOrder.LITTLE_ENDIAN);
+			crc.reset();
+			crc.update(record.duplicate());
+			if ((int) crc.getValue() != expected)
+				break;
+			apply(record);
+			reader.buffer.position(at + RECORD_HEADER + recordLength);
+			position += RECORD_HEADER + recordLength;
+		}
+		if (position < length) {
+			log.truncate(position);
+			log.force(true);
+		}
+		log.position(position);
+	}
+
+	/**
+	 * applies one record of the log to the tree
+	 */
+	// complexity: O(log n) and O(|t|) for a join
+	private void apply(ByteBuffer record) throws IOException {
+		byte type = record.get();
+		int key = record.getInt();
+		switch (type) {
+		case INSERT:
+			tree.insert(key, getInfo(record));
+			break;
+		case DELETE:
+			tree.delete(key);
+			break;
+		case SPLIT:
+			tree = tree.split(key)[0];
+			break;
+		case JOIN:
+			String info = getInfo(record);
+			int count = record.getInt();
+			int[] keys = new int[count];
+			String[] infos = new String[count];
+			for (int j = 0; j < count; j++) {
+				keys[j] = record.getInt();
+				infos[j] = getInfo(record);
+			}
+			tree.join(tree.createNode(key, info), AVLTree.fromSorted(keys, infos));
+			break;
+		default:
+			throw new IOException("unknown log record type " + type);
+		}
+	}
+
+	/**
+	 * returns once the first sequence records are on disk. if no sync is running
+	 * this thread runs one for every record appended so far, otherwise it waits
+	 * for the running one and checks again.
+	 */
+	// complexity: O(1) plus the wait
+	private void sync(long sequence) throws IOException {
+		synchronized (commitLock) {
+			while (true) {
+				checkFailure();
+				if (durable >= sequence)
+					return;
+				if (!syncing)
+					break;
+				try {
+					commitLock.wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("interrupted while waiting for the log");
+				}
+			}
+			syncing = true;
+		}
+		try {
+			synchronized (ioLock) {
+				// close() or checkpoint() may have written the records while this
+				// thread waited for ioLock, and after close() there is no log
+				synchronized (commitLock) {
+					if (durable >= sequence)
+						return;
+				}
+				long upTo;
+				synchronized (this) {
+					if (closed) {
+						checkFailure();
+						throw new IOException("the tree was closed before the log was synced");
+					}
+					upTo = appended;
+				}
+				writePending();
+				markDurable(upTo);
+			}
+		} finally {
+			synchronized (commitLock) {
+				syncing = false;
+				commitLock.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * writes the pending records to the log and forces it to disk. the caller
+	 * holds ioLock, the tree's lock is only held while taking the records, so
+	 * writers can append the next group during the fsync.
+	 */
+	// complexity: O(size of the pending records)
+	private void writePending() throws IOException {
+		ByteBuffer batch;
+		synchronized (this) {
+			batch = pending;
+			pending = spare;
+			spare = null;
+		}
+		batch.flip();
+		try {
+			while (batch.hasRemaining())
+				log.write(batch);
+			log.force(false);
+		} catch (IOException e) {
+			failure = e;
+			throw e;
+		} finally {
+			batch.clear();
+			synchronized (this) {
+				spare = batch;
+			}
+		}
+	}
+
+	// complexity: O(1)
+	private void markDurable(long upTo) {
+		synchronized (commitLock) {
+			if (upTo > durable)
+				durable = upTo;
+			commitLock.notifyAll();
+		}
+	}
+
+	/**
+	 * starts a record of the given type and key with room for payload more bytes.
+	 * returns where the record starts, to be passed to endRecord.
+	 */
+	// complexity: O(1) amortized
+	private int beginRecord(byte type, int key, int payload) {
+		int needed = RECORD_HEADER + 5 + payload;
+		if (pending.remaining() < needed) {
+			ByteBuffer larger = newBuffer(Math.max(2 * pending.capacity(), pending.position() + needed));
+			pending.flip();
+			larger.put(pending);
+			pending = larger;
+		}
+		int start = pending.position();
+		pending.position(start + RECORD_HEADER);
+		pending.put(type);
+		pending.putInt(key);
+		return start;
+	}
+
+	/**
+	 * fills in the length and checksum of the record that starts at start
+	 */
+	// complexity: O(length of the record)
+	private void endRecord(int start) {
+		int end = pending.position();
+		ByteBuffer body = pending.duplicate();
+		body.position(start + RECORD_HEADER).limit(end);
+		crc.reset();
+		crc.update(body);
+		pending.putInt(start, end - start - RECORD_HEADER);
+		pending.putInt(start + 4, (int) crc.getValue());
+		appended++;
+	}
+
+	/**
+	 * checks that k separates the keys of t from the keys of the tree
+	 */
+	// complexity: O(log n)
+	private void checkJoinOrder(int k, int[] keys) {
+		boolean tBelow = keys.length == 0 || keys[keys.length - 1] < k;
+		boolean tAbove = keys.length == 0 || k < keys[0];
+		boolean treeAbove = tree.empty() || k < tree.select(0);
+		boolean treeBelow = tree.empty() || tree.select(tree.size() - 1) < k;
+		if (!(tBelow && treeAbove) && !(treeBelow && tAbove))
+			throw new IllegalArgumentException("the key " + k + " does not separate t from the tree");
+	}
+
+	// complexity: O(1)
+	private void checkWritable() throws IOException {
+		if (closed)
+			throw new IllegalStateException("the tree is closed");
+		checkFailure();
+	}
+
+	// complexity: O(1)
+	private void checkFailure() throws IOException {
+		IOException e = failure;
+		if (e != null)
+			throw new IOException("writing the log failed earlier, the tree is no longer durable", e);
+	}
+
+	/**
+	 * deletes the snapshots and logs of generations before generation, and
+	 * temporary files left by a snapshot that was cut short
+	 */
+	// complexity: O(number of files in the directory)
+	private void deleteOlderThan(long generation) throws IOException {
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "{snapshot-*,wal-*}")) {
+			for (Path file : files) {
+				String name = file.getFileName().toString();
+				if (name.endsWith(".tmp") || generationOf(file) < generation)
+					Files.deleteIfExists(file);
+			}
+		}
+	}
+
+	/**
+	 * makes a rename or a new file in the directory durable. not every platform
+	 * lets a directory be opened, there the rename is left to the file system.
+	 */
+	// complexity: O(1)
+	private void syncDirectory() {
+		try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+			channel.force(true);
+		} catch (IOException e) {
+			// directories cannot be synced on this platform
+		}
+	}
+
+	// complexity: O(1)
+	private static void writeLogHeader(FileChannel channel) throws IOException {
+		ByteBuffer header = newBuffer(LOG_HEADER);
+		header.putInt(LOG_MAGIC).putInt(LOG_VERSION).flip();
+		while (header.hasRemaining())
+			channel.write(header);
+		channel.force(true);
+	}
+
+	/**
+	 * returns the generation in the name of a snapshot or log, or -1 if the name
+	 * has none
+	 */
+	// complexity: O(length of the name)
+	private static long generationOf(Path file) {
+		String name = file.getFileName().toString();
+		int from = name.indexOf('-') + 1;
+		int to = name.indexOf('.', from);
+		try {
+			return Long.parseLong(name.substring(from, to < 0 ? name.length() : to));
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	// complexity: O(1)
+	private static Path snapshotPath(Path directory, long generation) {
+		return directory.resolve("snapshot-" + generation + ".avl");
+	}
+
+	// complexity: O(1)
+	private static Path logPath(Path directory, long generation) {
+		return directory.resolve("wal-" + generation + ".log");
+	}
+
+	// complexity: O(capacity)
+	private static ByteBuffer newBuffer(int capacity) {
+		return ByteBuffer.allocate(capacity).order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	// complexity: O(length of info)
+	private static byte[] encode(String info) {
+		return info == null ? null : info.getBytes(StandardCharsets.UTF_8);
+	}
+
+	// complexity: O(1)
+	private static int infoLength(byte[] info) {
+		return 4 + (info == null ? 0 : info.length);
+	}
+
+	/**
+	 * writes an info as its length, -1 for null, and its UTF-8 bytes
+	 */
+	// complexity: O(length of info)
+	private void putInfo(byte[] info) {
+		if (info == null) {
+			pending.putInt(-1);
+			return;
+		}
+		pending.putInt(info.length);
+		pending.put(info);
+	}
+
+	// complexity: O(length of the info)
+	private static String getInfo(ByteBuffer record) {
+		int length = record.getInt();
+		if (length == -1)
+			return null;
+		byte[] bytes = new byte[length];
+		record.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Reads a log front to back through a buffer that grows to hold the largest
+	 * record.
+	 */
+	private static final class LogReader {
+
+		final FileChannel channel;
+		ByteBuffer buffer = newBuffer(1 << 20).flip();
+
+		// complexity: O(1)
+		LogReader(FileChannel channel) throws IOException {
+			this.channel = channel;
+			channel.position(0);
+		}
+
+		/**
+		 * reads on until the buffer has at least bytes bytes, returns false if the
+		 * log ends first
+		 */
+		// complexity: O(bytes) amortized
+		boolean ensure(int bytes) throws IOException {
+			if (buffer.remaining() >= bytes)
+				return true;
+			if (buffer.capacity() < bytes)
+				buffer = newBuffer(bytes).put(buffer);
+			else
+				buffer.compact();
+			while (buffer.position() < bytes && channel.read(buffer) > 0)
+				;
+			buffer.flip();
+			return buffer.remaining() >= bytes;
+		}
+	}
+}
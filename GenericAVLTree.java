@@ -0,0 +1,781 @@
+import java.util.Comparator;
+import java.util.NoSuchElementException;
+import java.util.function.ToLongFunction;
+
+/**
+ *
+ * GenericAVLTree
+ *
+ * An AVL Tree with distinct K keys ordered by a Comparator, or by their
+ * natural order, and V values. Same algorithms as AVLTree and the primitive
+ * trees, for keys that are not int or long: strings, composite keys and the
+ * like.
+ *
+ * The int key trees stay separate classes on purpose, their searches compare
+ * primitives in place. Here a key is an object somewhere else on the heap, and
+ * reading it for every comparison costs a cache miss per level on a large
+ * tree. So every node also keeps a long prefix of its key: an order preserving
+ * summary, prefix(a) < prefix(b) only if a < b. Nodes are compared by their
+ * prefixes, and the comparator is called (and the key read) only when the
+ * prefixes are equal. For Integer and Long keys in natural order the prefix
+ * is the key itself, so the walk compares primitives like the int trees and
+ * reads a key only at the node that holds the one searched for. For String
+ * keys it holds the first three chars. Other keys get a prefix of 0 unless the
+ * constructor is given one, and are compared by the comparator alone.
+ *
+ * Generated by gen/generate.sh from gen/PrimitiveAVLTree.java.template, do not
+ * edit by hand.
+ *
+ */
+
+@SuppressWarnings({ "unchecked", "rawtypes" })
+public class GenericAVLTree<K, V> {
+
+	// shared virtual leaf, never written to
+	static final Node NIL = new Node();
+
+	Node root;
+	Node min;
+	Node max;
+	final Comparator<? super K> comparator;
+	final ToLongFunction<? super K> prefix;
+
+	// GenericAVLTree constructor, keys are Comparable and kept in their natural
+	// order, Integer, Long and String keys get a prefix
+	// complexity: O(1)
+	public GenericAVLTree() {
+		this((Comparator<? super K>) Comparator.naturalOrder(), GenericAVLTree::naturalPrefix);
+	}
+
+	// GenericAVLTree constructor, keys are kept in the order of comparator
+	// complexity: O(1)
+	public GenericAVLTree(Comparator<? super K> comparator) {
+		this(comparator, k -> 0);
+	}
+
+	/**
+	 * public GenericAVLTree(Comparator<? super K> comparator,
+	 * ToLongFunction<? super K> prefix)
+	 *
+	 * keys are kept in the order of comparator, and compared by prefix first
+	 *
+	 * precondition: prefix preserves the order, prefix(a) < prefix(b) only if
+	 * comparator.compare(a, b) < 0
+	 */
+	// complexity: O(1)
+	public GenericAVLTree(Comparator<? super K> comparator, ToLongFunction<? super K> prefix) {
+		if (comparator == null || prefix == null)
+			throw new NullPointerException(comparator == null ? "comparator" : "prefix");
+		this.comparator = comparator;
+		this.prefix = prefix;
+		root = min = max = NIL;
+	}
+
+	/**
+	 * the prefix of the natural order: the value of an Integer or Long, the first
+	 * three chars of a String (shorter strings padded with 0, which only makes
+	 * prefixes equal), and 0 for anything else
+	 */
+	// complexity: O(1)
+	static long naturalPrefix(Object k) {
+		if (k instanceof Integer)
+			return (Integer) k;
+		if (k instanceof Long)
+			return (Long) k;
+		if (k instanceof String) {
+			String s = (String) k;
+			long p = 0;
+			for (int i = 0; i < 3; i++)
+				p = (p << 16) | (i < s.length() ? s.charAt(i) : 0);
+			return p;
+		}
+		return 0;
+	}
+
+	/**
+	 * returns the comparator that orders the keys
+	 */
+	// complexity: O(1)
+	public Comparator<? super K> comparator() {
+		return comparator;
+	}
+
+	/**
+	 * returns true if and only if the tree is empty
+	 */
+	// complexity: O(1)
+	public boolean empty() {
+		return root == NIL;
+	}
+
+	/**
+	 * returns the number of items in the tree
+	 */
+	// complexity: O(1)
+	public int size() {
+		return root.size;
+	}
+
+	/**
+	 * returns true if an item with key k is in the tree
+	 */
+	// complexity: O(log n)
+	public boolean contains(K k) {
+		return find(k) != NIL;
+	}
+
+	/**
+	 * returns the value of the item with key k, or null if there is no such
+	 * item
+	 */
+	// complexity: O(log n)
+	public V search(K k) {
+		Node node = find(k);
+		return node == NIL ? null : (V) node.value;
+	}
+
+	/**
+	 * returns the node with key k, or NIL
+	 */
+	// complexity: O(log n)
+	private Node find(K k) {
+		long p = prefix.applyAsLong(k);
+		Node node = root;
+		while (node != NIL) {
+			int cmp = compare(k, p, node);
+			if (cmp == 0)
+				return node;
+			node = cmp < 0 ? node.left : node.right;
+		}
+		return NIL;
+	}
+
+	/**
+	 * the comparator hook: compares the key k with prefix p to the key of node,
+	 * by the prefixes and if they are equal by the comparator, which decides
+	 * whether the keys are equal
+	 */
+	// complexity: O(1)
+	private int compare(K k, long p, Node node) {
+		if (p != node.prefix)
+			return p < node.prefix ? -1 : 1;
+		return comparator.compare(k, (K) node.key);
+	}
+
+	/**
+	 * inserts an item with key k and value v. returns the number of rebalancing
+	 * operations counted the same way as AVLTree.insert, or -1 if an item with key
+	 * k already exists in the tree.
+	 */
+	// complexity: O(log n), O(1) to find the place of a key past max or before min
+	public int insert(K k, V v) {
+		long p = prefix.applyAsLong(k);
+		if (root == NIL) {
+			root = min = max = new Node(k, p, v, null);
+			return 0;
+		}
+		// like AVLTree, a key past max or before min goes under it without a
+		// search. side is how k compares to the key of parent.
+		Node parent = max;
+		int side = compare(k, p, max);
+		if (side < 0) {
+			parent = min;
+			side = compare(k, p, min);
+			if (side > 0) {
+				parent = root;
+				side = compare(k, p, parent);
+				while (side != 0) {
+					Node next = side < 0 ? parent.left : parent.right;
+					if (next == NIL)
+						break;
+					parent = next;
+					side = compare(k, p, parent);
+				}
+			}
+		}
+		if (side == 0)
+			return -1;
+		Node node = new Node(k, p, v, parent);
+		if (side < 0)
+			parent.left = node;
+		else
+			parent.right = node;
+		// a new min or max hangs under the old one
+		if (side < 0 && parent == min)
+			min = node;
+		if (side > 0 && parent == max)
+			max = node;
+		for (Node n = parent; n != null; n = n.parent)
+			n.size++;
+		int ops = insertRebalance(parent);
+		fixRoot();
+		return ops;
+	}
+
+	/**
+	 * deletes the item with key k. returns the number of rebalancing operations
+	 * counted the same way as AVLTree.delete, or -1 if there is no item with key k.
+	 */
+	// complexity: O(log n)
+	public int delete(K k) {
+		Node node = find(k);
+		if (node == NIL)
+			return -1;
+		if (node == min)
+			min = successor(node);
+		if (node == max)
+			max = predecessor(node);
+		if (node.left != NIL && node.right != NIL) {
+			// move the successor's item here and unlink the successor instead
+			Node successor = successor(node);
+			node.key = successor.key;
+			node.prefix = successor.prefix;
+			node.value = successor.value;
+			if (successor == max)
+				max = node;
+			node = successor;
+		}
+		Node son = node.left != NIL ? node.left : node.right;
+		Node parent = node.parent;
+		if (son != NIL)
+			son.parent = parent;
+		if (parent == null)
+			root = son;
+		else if (parent.left == node)
+			parent.left = son;
+		else
+			parent.right = son;
+		if (parent == null)
+			return 0;
+		for (Node n = parent; n != null; n = n.parent)
+			n.size--;
+		int ops = deleteRebalance(parent);
+		fixRoot();
+		return ops;
+	}
+
+	/**
+	 * returns the value of the item with the smallest key, or null if the tree
+	 * is empty
+	 */
+	// complexity: O(1)
+	public V min() {
+		return min == NIL ? null : (V) min.value;
+	}
+
+	/**
+	 * returns the value of the item with the largest key, or null if the tree
+	 * is empty
+	 */
+	// complexity: O(1)
+	public V max() {
+		return max == NIL ? null : (V) max.value;
+	}
+
+	/**
+	 * returns the smallest key in the tree
+	 *
+	 * precondition: !empty()
+	 */
+	// complexity: O(1)
+	public K minKey() {
+		if (min == NIL)
+			throw new NoSuchElementException();
+		return (K) min.key;
+	}
+
+	/**
+	 * returns the largest key in the tree
+	 *
+	 * precondition: !empty()
+	 */
+	// complexity: O(1)
+	public K maxKey() {
+		if (max == NIL)
+			throw new NoSuchElementException();
+		return (K) max.key;
+	}
+
+	/**
+	 * returns a sorted array of all the keys in the tree
+	 */
+	// complexity: O(n)
+	public Object[] keysToArray() {
+		Object[] array = new Object[size()];
+		int i = 0;
+		for (Node node = min; node != NIL; node = successor(node))
+			array[i++] = node.key;
+		return array;
+	}
+
+	/**
+	 * returns an array of all the values in the tree, sorted by their keys
+	 */
+	// complexity: O(n)
+	public Object[] infoToArray() {
+		Object[] array = new Object[size()];
+		int i = 0;
+		for (Node node = min; node != NIL; node = successor(node))
+			array[i++] = (V) node.value;
+		return array;
+	}
+
+	/**
+	 * splits the tree around the key x. returns [t1, t2] with keys(t1) < x <
+	 * keys(t2); the item with key x, if there is one, is in neither. x does not
+	 * have to be in the tree. this tree is left empty.
+	 */
+	// complexity: O(log n)
+	public GenericAVLTree<K, V>[] split(K x) {
+		Node left = NIL;
+		Node right = NIL;
+		Node parent = null;
+		long p = prefix.applyAsLong(x);
+		if (root != NIL) {
+			Node node = root;
+			int cmp = compare(x, p, node);
+			while (cmp != 0) {
+				Node next = cmp < 0 ? node.left : node.right;
+				if (next == NIL)
+					break;
+				node = next;
+				cmp = compare(x, p, node);
+			}
+			if (cmp == 0) {
+				left = node.left;
+				right = node.right;
+				detach(left);
+				detach(right);
+				parent = node.parent;
+			} else {
+				// x is absent, it would hang under node
+				parent = node;
+			}
+		}
+		while (parent != null) {
+			Node next = parent.parent;
+			if (compare(x, p, parent) > 0) {
+				Node sub = parent.left;
+				detach(sub);
+				left = join(sub, parent, left);
+			} else {
+				Node sub = parent.right;
+				detach(sub);
+				right = join(right, parent, sub);
+			}
+			parent = next;
+		}
+		GenericAVLTree<K, V> t1 = new GenericAVLTree<>(comparator, prefix);
+		GenericAVLTree<K, V> t2 = new GenericAVLTree<>(comparator, prefix);
+		t1.setRoot(left);
+		t2.setRoot(right);
+		root = min = max = NIL;
+		return new GenericAVLTree[] { t1, t2 };
+	}
+
+	/**
+	 * joins the item (k, v) and the tree t into this tree. t is left empty.
+	 * returns |rank(t) - rank(this)| + 1, with -1 as the rank of an empty tree.
+	 *
+	 * precondition: keys(t) and k are all smaller or all larger than keys()
+	 */
+	// complexity: O(|rank(t) - rank(this)| + 1)
+	public int join(K k, V v, GenericAVLTree<K, V> t) {
+		int delta = Math.abs(t.root.height - root.height) + 1;
+		long p = prefix.applyAsLong(k);
+		Node x = new Node(k, p, v, null);
+		boolean thisIsSmaller = root != NIL ? compare(k, p, root) > 0
+				: t.root == NIL || compare(k, p, t.root) < 0;
+		Node lesser = thisIsSmaller ? root : t.root;
+		Node greater = thisIsSmaller ? t.root : root;
+		Node newMin = lesser == NIL ? x : (thisIsSmaller ? min : t.min);
+		Node newMax = greater == NIL ? x : (thisIsSmaller ? t.max : max);
+		root = join(lesser, x, greater);
+		min = newMin;
+		max = newMax;
+		t.root = t.min = t.max = NIL;
+		return delta;
+	}
+
+	/**
+	 * makes node the root of this tree and finds min and max
+	 */
+	// complexity: O(log n)
+	private void setRoot(Node node) {
+		root = min = max = node;
+		if (node == NIL)
+			return;
+		while (min.left != NIL)
+			min = min.left;
+		while (max.right != NIL)
+			max = max.right;
+	}
+
+	/**
+	 * the rotations may have moved a new node above the root
+	 */
+	// complexity: O(1)
+	private void fixRoot() {
+		root = topOf(root);
+	}
+
+	/**
+	 * cuts node from its parent, the parent keeps pointing to it
+	 */
+	// complexity: O(1)
+	private static void detach(Node node) {
+		if (node != NIL)
+			node.parent = null;
+	}
+
+	/**
+	 * joins the detached subtrees l and r with x in the middle (keys(l) < x.key <
+	 * keys(r)) and returns the root of the result
+	 */
+	// complexity: O(|l.height - r.height| + 1)
+	static Node join(Node l, Node x, Node r) {
+		if (l.height > r.height + 1)
+			return joinIntoRight(l, x, r);
+		if (r.height > l.height + 1)
+			return joinIntoLeft(l, x, r);
+		link(x, l, r);
+		x.parent = null;
+		return x;
+	}
+
+	/**
+	 * hangs x with the low tree r on the right spine of the higher tree l
+	 */
+	// complexity: O(l.height - r.height)
+	private static Node joinIntoRight(Node l, Node x, Node r) {
+		Node p = null;
+		Node c = l;
+		while (c.height > r.height + 1) {
+			p = c;
+			c = c.right;
+		}
+		link(x, c, r);
+		p.right = x;
+		x.parent = p;
+		for (Node n = p; n != null; n = n.parent)
+			n.size += 1 + r.size;
+		insertRebalance(p);
+		return topOf(l);
+	}
+
+	/**
+	 * hangs x with the low tree l on the left spine of the higher tree r
+	 */
+	// complexity: O(r.height - l.height)
+	private static Node joinIntoLeft(Node l, Node x, Node r) {
+		Node p = null;
+		Node c = r;
+		while (c.height > l.height + 1) {
+			p = c;
+			c = c.left;
+		}
+		link(x, l, c);
+		p.left = x;
+		x.parent = p;
+		for (Node n = p; n != null; n = n.parent)
+			n.size += 1 + l.size;
+		insertRebalance(p);
+		return topOf(r);
+	}
+
+	/**
+	 * returns the root above node, node was a root before at most two rotations
+	 */
+	// complexity: O(1)
+	private static Node topOf(Node node) {
+		while (node.parent != null)
+			node = node.parent;
+		return node;
+	}
+
+	/**
+	 * makes l and r the sons of x and sets x's height and size from them
+	 */
+	// complexity: O(1)
+	private static void link(Node x, Node l, Node r) {
+		x.left = l;
+		x.right = r;
+		if (l != NIL)
+			l.parent = x;
+		if (r != NIL)
+			r.parent = x;
+		x.height = Math.max(l.height, r.height) + 1;
+		x.size = l.size + r.size + 1;
+	}
+
+	/**
+	 * rebalancing after insert, same cases and counts as AVLTree.insertRebalance
+	 */
+	// complexity: O(log n)
+	static int insertRebalance(Node node) {
+		int ops = 0;
+		while (node != null) {
+			switch (findEdges(node)) {
+			case AVLTree.L0R1:
+			case AVLTree.L1R0:
+				node.height++;
+				ops++;
+				node = node.parent;
+				break;
+			case AVLTree.L0R2:
+				return ops + insertRebalanceL0R2(node);
+			case AVLTree.L2R0:
+				return ops + insertRebalanceL2R0(node);
+			default:
+				return ops;
+			}
+		}
+		return ops;
+	}
+
+	// complexity: O(1)
+	private static int insertRebalanceL0R2(Node node) {
+		Node child = node.left;
+		switch (findEdges(child)) {
+		case AVLTree.L1R1:
+			rotateRight(child);
+			child.height++;
+			return 4;
+		case AVLTree.L1R2:
+			rotateRight(child);
+			node.height--;
+			return 2;
+		case AVLTree.L2R1:
+			Node grandChild = child.right;
+			rotateLeft(grandChild);
+			rotateRight(grandChild);
+			child.height--;
+			node.height--;
+			grandChild.height++;
+			return 5;
+		default:
+			return 0;
+		}
+	}
+
+	// complexity: O(1)
+	private static int insertRebalanceL2R0(Node node) {
+		Node child = node.right;
+		switch (findEdges(child)) {
+		case AVLTree.L1R1:
+			rotateLeft(child);
+			child.height++;
+			return 4;
+		case AVLTree.L2R1:
+			rotateLeft(child);
+			node.height--;
+			return 2;
+		case AVLTree.L1R2:
+			Node grandChild = child.left;
+			rotateRight(grandChild);
+			rotateLeft(grandChild);
+			child.height--;
+			node.height--;
+			grandChild.height++;
+			return 5;
+		default:
+			return 0;
+		}
+	}
+
+	/**
+	 * rebalancing after delete, same cases and counts as AVLTree.deleteRebalance
+	 */
+	// complexity: O(log n)
+	private static int deleteRebalance(Node node) {
+		int ops = 0;
+		while (node != null) {
+			switch (findEdges(node)) {
+			case AVLTree.L2R2:
+				node.height--;
+				ops++;
+				node = node.parent;
+				break;
+			case AVLTree.L1R3: {
+				Node son = node.left;
+				switch (findEdges(son)) {
+				case AVLTree.L1R1:
+					rotateRight(son);
+					node.height--;
+					son.height++;
+					return ops + 3;
+				case AVLTree.L2R1:
+					Node grandSon = son.right;
+					rotateLeft(grandSon);
+					rotateRight(grandSon);
+					grandSon.height++;
+					node.height -= 2;
+					son.height--;
+					ops += 6;
+					node = grandSon.parent;
+					break;
+				case AVLTree.L1R2:
+					rotateRight(son);
+					node.height -= 2;
+					ops += 3;
+					node = son.parent;
+					break;
+				default:
+					return ops;
+				}
+				break;
+			}
+			case AVLTree.L3R1: {
+				Node son = node.right;
+				switch (findEdges(son)) {
+				case AVLTree.L1R1:
+					rotateLeft(son);
+					node.height--;
+					son.height++;
+					return ops + 3;
+				case AVLTree.L1R2:
+					Node grandSon = son.left;
+					rotateRight(grandSon);
+					rotateLeft(grandSon);
+					grandSon.height++;
+					node.height -= 2;
+					son.height--;
+					ops += 6;
+					node = grandSon.parent;
+					break;
+				case AVLTree.L2R1:
+					rotateLeft(son);
+					node.height -= 2;
+					ops += 3;
+					node = son.parent;
+					break;
+				default:
+					return ops;
+				}
+				break;
+			}
+			default:
+				return ops;
+			}
+		}
+		return ops;
+	}
+
+	/**
+	 * rotates node above its parent, node is a left son
+	 */
+	// complexity: O(1)
+	private static void rotateRight(Node node) {
+		Node p = node.parent;
+		Node inner = node.right;
+		replaceSon(p, node);
+		p.left = inner;
+		if (inner != NIL)
+			inner.parent = p;
+		node.right = p;
+		p.parent = node;
+		p.size = p.left.size + p.right.size + 1;
+		node.size = node.left.size + p.size + 1;
+	}
+
+	/**
+	 * rotates node above its parent, node is a right son
+	 */
+	// complexity: O(1)
+	private static void rotateLeft(Node node) {
+		Node p = node.parent;
+		Node inner = node.left;
+		replaceSon(p, node);
+		p.right = inner;
+		if (inner != NIL)
+			inner.parent = p;
+		node.left = p;
+		p.parent = node;
+		p.size = p.left.size + p.right.size + 1;
+		node.size = node.right.size + p.size + 1;
+	}
+
+	/**
+	 * puts node in the place of its parent p under the grandparent
+	 */
+	// complexity: O(1)
+	private static void replaceSon(Node p, Node node) {
+		Node grandParent = p.parent;
+		node.parent = grandParent;
+		if (grandParent != null) {
+			if (grandParent.left == p)
+				grandParent.left = node;
+			else
+				grandParent.right = node;
+		}
+	}
+
+	// complexity: O(log n)
+	private static Node successor(Node node) {
+		if (node.right != NIL) {
+			node = node.right;
+			while (node.left != NIL)
+				node = node.left;
+			return node;
+		}
+		while (node.parent != null && node.parent.right == node)
+			node = node.parent;
+		return node.parent == null ? NIL : node.parent;
+	}
+
+	// complexity: O(log n)
+	private static Node predecessor(Node node) {
+		if (node.left != NIL) {
+			node = node.left;
+			while (node.right != NIL)
+				node = node.right;
+			return node;
+		}
+		while (node.parent != null && node.parent.left == node)
+			node = node.parent;
+		return node.parent == null ? NIL : node.parent;
+	}
+
+	/**
+	 * returns the edge code of node, see AVLTree.L0R1
+	 */
+	// complexity: O(1)
+	static int findEdges(Node node) {
+		int h = node.height;
+		int deltaLeft = h - node.left.height;
+		int deltaRight = h - node.right.height;
+		if (((deltaLeft | deltaRight) & ~3) != 0)
+			return AVLTree.NO_EDGE;
+		return (deltaLeft << 2) | deltaRight;
+	}
+
+	/** Node CLASS */
+	static final class Node {
+
+		Object key; // key of node
+		long prefix; // prefix of the key
+		Object value; // value of node
+		int height; // height of subtree, -1 for NIL
+		int size; // number of nodes in subtree
+		Node parent; // parent of node, null for the root
+		Node left; // left subtree
+		Node right; // right subtree
+
+		// NIL constructor
+		// complexity: O(1)
+		private Node() {
+			this.height = -1;
+		}
+
+		// complexity: O(1)
+		Node(Object key, long prefix, Object value, Node parent) {
+			this.key = key;
+			this.prefix = prefix;
+			this.value = value;
+			this.size = 1;
+			this.parent = parent;
+			this.left = NIL;
+			this.right = NIL;
+		}
+	}
+}
@@ -0,0 +1,199 @@
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+import java.util.function.ToLongFunction;
+
+/**
+ *
+ * IntervalTree
+ *
+ * An AVLTree of closed intervals [start, end], keyed by start, with the end
+ * read from the info by the aggregator given to the constructor (see
+ * IntervalTree.ends). The tree keeps the largest end of every subtree as its
+ * aggregate (see AVLTree.Aggregator), so it is kept up to date by the same
+ * rotations, splits and joins as the sizes, and every method of AVLTree works
+ * on the intervals.
+ *
+ * A subtree whose largest end is before lo holds no interval that overlaps
+ * [lo, hi], and neither does the part of the tree with starts after hi, so the
+ * queries below only go into subtrees that have an answer in them.
+ *
+ * The starts are distinct, like all keys of an AVLTree.
+ *
+ */
+
+public class IntervalTree extends AVLTree {
+
+	/**
+	 * public IntervalTree(Aggregator ends)
+	 *
+	 * an empty tree that reads the end of an interval from its info with ends,
+	 * see IntervalTree.ends. join, union, intersection and difference only
+	 * take trees with the same aggregator, so trees that are put together have
+	 * to be built with one ends aggregator.
+	 *
+	 * precondition: ends was returned by IntervalTree.ends, otherwise
+	 * IllegalArgumentException is thrown
+	 */
+	// complexity: O(1)
+	public IntervalTree(Aggregator ends) {
+		super(checkEnds(ends));
+	}
+
+	/**
+	 * public static Aggregator ends(ToLongFunction<String> end)
+	 *
+	 * returns the aggregator for interval trees whose info i holds an interval
+	 * that ends at end(i). It keeps the largest end of every subtree. Make it
+	 * once and pass it to every tree that will be joined or combined.
+	 */
+	// complexity: O(1)
+	public static Aggregator ends(ToLongFunction<String> end) {
+		if (end == null)
+			throw new NullPointerException("end");
+		return new Ends(end);
+	}
+
+	// complexity: O(1)
+	private static Aggregator checkEnds(Aggregator ends) {
+		if (!(ends instanceof Ends))
+			throw new IllegalArgumentException("the aggregator of an IntervalTree comes from IntervalTree.ends");
+		return ends;
+	}
+
+	// the parts of a split share the aggregator, so they can be joined again
+	// complexity: O(1)
+	@Override
+	AVLTree emptyLike() {
+		return new IntervalTree(aggregator);
+	}
+
+	/**
+	 * public long maxEnd()
+	 *
+	 * returns the largest end of an interval in the tree, or Long.MIN_VALUE if the
+	 * tree is empty
+	 */
+	// complexity: O(1)
+	public long maxEnd() {
+		return aggregate();
+	}
+
+	/**
+	 * public boolean overlapsAny(long lo, long hi)
+	 *
+	 * returns true if some interval overlaps [lo, hi], that is it starts at or
+	 * before hi and ends at or after lo. Only the largest end of the intervals
+	 * that start at or before hi is looked at, nothing is listed.
+	 */
+	// complexity: O(log n)
+	public boolean overlapsAny(long lo, long hi) {
+		if (lo > hi || empty() || min.getKey() > hi)
+			return false;
+		int last = (int) Math.min(hi, Integer.MAX_VALUE);
+		return aggregate(Integer.MIN_VALUE, last) >= lo;
+	}
+
+	/**
+	 * public int[] overlapping(long lo, long hi)
+	 *
+	 * returns the starts of the intervals that overlap [lo, hi], in increasing
+	 * order
+	 */
+	// complexity: O(log n + m log(n/m + 1)) for m intervals found
+	public int[] overlapping(long lo, long hi) {
+		Collector found = new Collector();
+		forEachOverlapping(lo, hi, found);
+		return found.toArray();
+	}
+
+	/**
+	 * public int[] stab(long point)
+	 *
+	 * returns the starts of the intervals that contain point, in increasing order
+	 */
+	// complexity: O(log n + m log(n/m + 1)) for m intervals found
+	public int[] stab(long point) {
+		return overlapping(point, point);
+	}
+
+	/**
+	 * public void forEachOverlapping(long lo, long hi, IntConsumer action)
+	 *
+	 * calls action with the start of every interval that overlaps [lo, hi], in
+	 * increasing order. The tree may not be changed by action.
+	 */
+	// complexity: O(log n + m log(n/m + 1)) for m intervals found
+	public void forEachOverlapping(long lo, long hi, IntConsumer action) {
+		if (lo <= hi)
+			report(root, lo, hi, action);
+	}
+
+	/**
+	 * reports the intervals of the subtree of node that overlap [lo, hi]. the
+	 * left subtree is a recursive call and the right one a loop, so the depth of
+	 * the recursion is the height of the tree.
+	 */
+	// complexity: O(log n + m log(n/m + 1)) for m intervals found
+	private static void report(AVLNode node, long lo, long hi, IntConsumer action) {
+		while (node.isRealNode() && ((AggregateNode) node).aggregate >= lo) {
+			if (node.getKey() > hi) {
+				node = node.left;
+				continue;
+			}
+			report(node.left, lo, hi, action);
+			if (((AggregateNode) node).value >= lo)
+				action.accept(node.getKey());
+			node = node.right;
+		}
+	}
+
+	/**
+	 * The aggregator of an IntervalTree: the largest end, Long.MIN_VALUE for no
+	 * intervals. Queries rely on it, so the constructor takes no other.
+	 */
+	private static final class Ends implements Aggregator {
+
+		private final ToLongFunction<String> end;
+
+		// complexity: O(1)
+		Ends(ToLongFunction<String> end) {
+			this.end = end;
+		}
+
+		// complexity: O(1)
+		public long identity() {
+			return Long.MIN_VALUE;
+		}
+
+		// complexity: O(1)
+		public long lift(int key, String info) {
+			return end.applyAsLong(info);
+		}
+
+		// complexity: O(1)
+		public long combine(long a, long b) {
+			return Math.max(a, b);
+		}
+	}
+
+	/**
+	 * Collects the starts reported by forEachOverlapping in a growing array.
+	 */
+	private static final class Collector implements IntConsumer {
+
+		private int[] starts = new int[16];
+		private int count;
+
+		// complexity: O(1) amortized
+		public void accept(int start) {
+			if (count == starts.length)
+				starts = Arrays.copyOf(starts, count * 2);
+			starts[count++] = start;
+		}
+
+		// complexity: O(count)
+		int[] toArray() {
+			return Arrays.copyOf(starts, count);
+		}
+	}
+}
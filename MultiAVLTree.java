@@ -0,0 +1,272 @@
+import java.nio.file.Path;
+
+/**
+ *
+ * MultiAVLTree
+ *
+ * An AVL Tree of integer keys and info in which a key can repeat. All the
+ * items with one key are kept in one node, in the order they were inserted, so
+ * a repeated key costs no node and no rebalancing. Every node also counts the
+ * items of its subtree (as a sum aggregate, see AVLTree.Aggregator), so size,
+ * rank, select and countRange count every item and stay O(log n).
+ *
+ * insert and delete add and remove one item, and so do the insert and delete
+ * of a finger. The other methods of AVLTree see one item per key, with the
+ * info of its first item, and move or drop all the items of a key together:
+ * keysToArray, infoToArray, keys, cursors, split, join and filter.
+ * deleteEvery removes a key with all its items.
+ *
+ * union adds the items of t after the items of the tree with the same key.
+ * intersection and difference go by keys: intersection keeps all the items of
+ * the tree whose key is in t and drops the items of t, difference drops all
+ * the items of the tree whose key is in t.
+ *
+ * Snapshots have no room for the items of a key after the first, so writeTo
+ * is not supported.
+ *
+ */
+
+public class MultiAVLTree extends AVLTree {
+
+	// MultiAVLTree constructor
+	// complexity: O(1)
+	public MultiAVLTree() {
+		super(MULTIPLICITY);
+	}
+
+	// complexity: O(1)
+	@Override
+	AVLTree emptyLike() {
+		return new MultiAVLTree();
+	}
+
+	// insert(k, i) of a key in the tree adds the item to its node after the
+	// others and returns 0: only the item counts on the search path change.
+	// a new key gets a node like in AVLTree.insert. insert never returns -1.
+	// complexity: O(depth of node)
+	@Override
+	int insertExisting(AVLNode node, String info) {
+		((MultiNode) node).add(info);
+		addToCounts(node, 1);
+		return 0;
+	}
+
+	// delete(k) removes the last inserted item with key k and returns 0 if
+	// other items with key k are left, otherwise the node goes like in
+	// AVLTree.delete
+	// complexity: O(log n)
+	@Override
+	int deleteExisting(AVLNode node) {
+		MultiNode multi = (MultiNode) node;
+		if (multi.value == 1)
+			return super.deleteExisting(node);
+		multi.removeLast();
+		addToCounts(node, -1);
+		return 0;
+	}
+
+	/**
+	 * public int deleteEvery(int k)
+	 *
+	 * removes all the items with key k, like AVLTree.delete removes a node.
+	 * Returns the number of rebalancing operations, or -1 if k is not in the tree.
+	 */
+	// complexity: O(log n)
+	public int deleteEvery(int k) {
+		MultiNode node = find(k);
+		return node == null ? -1 : super.deleteExisting(node);
+	}
+
+	/**
+	 * public BatchStats insertAll(int[] keys, String[] infos)
+	 *
+	 * inserts every item (keys[i], infos[i]) like insert, in the order given.
+	 *
+	 * precondition: keys.length == infos.length, otherwise IllegalArgumentException
+	 * is thrown
+	 */
+	// complexity: O(m log n)
+	@Override
+	public BatchStats insertAll(int[] keys, String[] infos) {
+		if (keys.length != infos.length)
+			throw new IllegalArgumentException(keys.length + " keys but " + infos.length + " infos");
+		long operations = 0;
+		for (int j = 0; j < keys.length; j++)
+			operations += insert(keys[j], infos[j]);
+		return new BatchStats(keys.length, keys.length, operations);
+	}
+
+	/**
+	 * public BatchStats deleteAll(int[] keys)
+	 *
+	 * removes one item for each entry of keys, like delete. Entries whose key has
+	 * no items left are skipped.
+	 */
+	// complexity: O(m log n)
+	@Override
+	public BatchStats deleteAll(int[] keys) {
+		int applied = 0;
+		long operations = 0;
+		for (int k : keys) {
+			int result = delete(k);
+			if (result != -1) {
+				applied++;
+				operations += result;
+			}
+		}
+		return new BatchStats(keys.length, applied, operations);
+	}
+
+	/**
+	 * public int count(int k)
+	 *
+	 * returns the number of items with key k
+	 */
+	// complexity: O(log n)
+	public int count(int k) {
+		MultiNode node = find(k);
+		return node == null ? 0 : (int) node.value;
+	}
+
+	/**
+	 * public String[] searchAll(int k)
+	 *
+	 * returns the info of the items with key k in the order they were inserted, or
+	 * an empty array if k is not in the tree
+	 */
+	// complexity: O(log n + count(k))
+	public String[] searchAll(int k) {
+		MultiNode node = find(k);
+		return node == null ? new String[0] : node.infos();
+	}
+
+	/**
+	 * public int size()
+	 *
+	 * returns the number of items in the tree, a key counts as many times as it
+	 * was inserted
+	 */
+	// complexity: O(1)
+	@Override
+	public int size() {
+		return (int) aggregate();
+	}
+
+	/**
+	 * public int distinctSize()
+	 *
+	 * returns the number of different keys in the tree
+	 */
+	// complexity: O(1)
+	public int distinctSize() {
+		return root.getSize();
+	}
+
+	/**
+	 * public int rank(int k)
+	 *
+	 * returns the number of items with a key smaller than k
+	 */
+	// complexity: O(log n)
+	@Override
+	public int rank(int k) {
+		return countBelow(k, false);
+	}
+
+	/**
+	 * public int select(int i)
+	 *
+	 * returns the key of the item with rank i, the items of one key have
+	 * consecutive ranks
+	 *
+	 * precondition: 0 <= i < size()
+	 */
+	// complexity: O(log n)
+	@Override
+	public int select(int i) {
+		if (i < 0 || i >= size())
+			throw new IndexOutOfBoundsException("rank " + i + " out of range for size " + size());
+		AVLNode node = root;
+		while (true) {
+			long leftCount = count(node.left);
+			long count = ((MultiNode) node).value;
+			if (i < leftCount) {
+				node = node.left;
+			} else if (i < leftCount + count) {
+				return node.getKey();
+			} else {
+				i -= leftCount + count;
+				node = node.right;
+			}
+		}
+	}
+
+	/**
+	 * public int countRange(int lo, int hi)
+	 *
+	 * returns the number of items with lo <= key <= hi, or 0 if lo > hi
+	 */
+	// complexity: O(log n)
+	@Override
+	public int countRange(int lo, int hi) {
+		if (lo > hi)
+			return 0;
+		return countBelow(hi, true) - countBelow(lo, false);
+	}
+
+	// complexity: O(1)
+	@Override
+	public void writeTo(Path path) {
+		throw new UnsupportedOperationException("a snapshot keeps one item per key");
+	}
+
+	/**
+	 * returns the number of items with a key smaller than k, or smaller or equal
+	 * to k if inclusive
+	 */
+	// complexity: O(log n)
+	private int countBelow(int k, boolean inclusive) {
+		long count = 0;
+		AVLNode node = root;
+		while (node.isRealNode()) {
+			if (k < node.getKey() || (k == node.getKey() && !inclusive)) {
+				node = node.left;
+			} else {
+				count += count(node.left) + ((MultiNode) node).value;
+				if (k == node.getKey())
+					break;
+				node = node.right;
+			}
+		}
+		return (int) count;
+	}
+
+	/**
+	 * returns the node with key k, or null
+	 */
+	// complexity: O(log n)
+	private MultiNode find(int k) {
+		AVLNode node = root;
+		while (node.isRealNode()) {
+			if (k == node.getKey())
+				return (MultiNode) node;
+			node = k < node.getKey() ? node.left : node.right;
+		}
+		return null;
+	}
+
+	/**
+	 * adds delta to the item counts of node and its ancestors, nothing else
+	 * changes when an item is added to or removed from an existing node
+	 */
+	// complexity: O(depth of node)
+	private static void addToCounts(AVLNode node, int delta) {
+		for (; node != null; node = node.parent)
+			((MultiNode) node).aggregate += delta;
+	}
+
+	// complexity: O(1)
+	private static long count(AVLNode node) {
+		return node.isRealNode() ? ((MultiNode) node).aggregate : 0;
+	}
+}
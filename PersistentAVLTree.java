@@ -0,0 +1,364 @@
+import java.util.Arrays;
+
+/**
+ *
+ * PersistentAVLTree
+ *
+ * An AVL Tree with distinct integer keys and info whose nodes never change
+ * once they are made. An insert or delete copies the nodes on the path from
+ * the root to the changed place (O(log n) of them) and shares the rest with
+ * the previous version, so snapshot() is O(1): it keeps the current root.
+ *
+ * The nodes have no parent pointers, a parent pointer would tie every node to
+ * one version. AVLTree keeps its parent pointers, which is why this is its own
+ * class rather than a mode of AVLTree; toAVLTree() hands a version over.
+ *
+ * Writers are serialized on the tree. Readers of a snapshot take no locks and
+ * never see a later write. A version that no snapshot refers to any more is
+ * reclaimed by the garbage collector like any other object.
+ *
+ */
+
+public class PersistentAVLTree {
+
+	// an AVL tree of 2^31 nodes is less than 46 high
+	static final int MAX_HEIGHT = 64;
+
+	private volatile Node root;
+	private final boolean readOnly;
+	// search path of the running write, guarded by the tree's lock
+	private final Node[] path;
+	private final boolean[] wentLeft;
+
+	// PersistentAVLTree constructor
+	// complexity: O(1)
+	public PersistentAVLTree() {
+		this(null, false);
+	}
+
+	// complexity: O(1)
+	private PersistentAVLTree(Node root, boolean readOnly) {
+		this.root = root;
+		this.readOnly = readOnly;
+		this.path = readOnly ? null : new Node[MAX_HEIGHT];
+		this.wentLeft = readOnly ? null : new boolean[MAX_HEIGHT];
+	}
+
+	/**
+	 * public PersistentAVLTree snapshot()
+	 *
+	 * returns a read-only tree with the items the tree has now. Later writes to
+	 * this tree do not show in it.
+	 */
+	// complexity: O(1)
+	public PersistentAVLTree snapshot() {
+		return new PersistentAVLTree(root, true);
+	}
+
+	/**
+	 * public boolean isReadOnly()
+	 *
+	 * returns true for a tree made by snapshot()
+	 */
+	// complexity: O(1)
+	public boolean isReadOnly() {
+		return readOnly;
+	}
+
+	/**
+	 * public boolean empty()
+	 *
+	 * returns true if and only if the tree is empty
+	 */
+	// complexity: O(1)
+	public boolean empty() {
+		return root == null;
+	}
+
+	/**
+	 * public int size()
+	 *
+	 * returns the number of items in the tree
+	 */
+	// complexity: O(1)
+	public int size() {
+		return size(root);
+	}
+
+	/**
+	 * public String search(int k)
+	 *
+	 * returns the info of the item with key k, or null if there is none
+	 */
+	// complexity: O(log n)
+	public String search(int k) {
+		Node node = root;
+		while (node != null) {
+			if (k == node.key)
+				return node.info;
+			node = k < node.key ? node.left : node.right;
+		}
+		return null;
+	}
+
+	/**
+	 * public String min()
+	 *
+	 * returns the info of the item with the smallest key, or null if the tree is
+	 * empty
+	 */
+	// complexity: O(log n)
+	public String min() {
+		Node node = root;
+		if (node == null)
+			return null;
+		while (node.left != null)
+			node = node.left;
+		return node.info;
+	}
+
+	/**
+	 * public String max()
+	 *
+	 * returns the info of the item with the largest key, or null if the tree is
+	 * empty
+	 */
+	// complexity: O(log n)
+	public String max() {
+		Node node = root;
+		if (node == null)
+			return null;
+		while (node.right != null)
+			node = node.right;
+		return node.info;
+	}
+
+	/**
+	 * public boolean insert(int k, String i)
+	 *
+	 * inserts the item (k, i) unless there is an item with key k. Returns true if
+	 * it was inserted. Copies the O(log n) nodes on the search path.
+	 *
+	 * precondition: the tree is not a snapshot, otherwise
+	 * UnsupportedOperationException is thrown
+	 */
+	// complexity: O(log n)
+	public synchronized boolean insert(int k, String i) {
+		checkWritable();
+		int depth = 0;
+		Node node = root;
+		while (node != null) {
+			if (k == node.key) {
+				clearPath(depth);
+				return false;
+			}
+			path[depth] = node;
+			wentLeft[depth] = k < node.key;
+			node = wentLeft[depth] ? node.left : node.right;
+			depth++;
+		}
+		root = rebuildPath(depth, new Node(k, i, null, null));
+		return true;
+	}
+
+	/**
+	 * public boolean delete(int k)
+	 *
+	 * deletes the item with key k. Returns true if there was one. Copies the
+	 * O(log n) nodes on the path to k and, for a node with two sons, on to its
+	 * successor.
+	 *
+	 * precondition: the tree is not a snapshot, otherwise
+	 * UnsupportedOperationException is thrown
+	 */
+	// complexity: O(log n)
+	public synchronized boolean delete(int k) {
+		checkWritable();
+		int depth = 0;
+		Node node = root;
+		while (node != null && k != node.key) {
+			path[depth] = node;
+			wentLeft[depth] = k < node.key;
+			node = wentLeft[depth] ? node.left : node.right;
+			depth++;
+		}
+		if (node == null) {
+			clearPath(depth);
+			return false;
+		}
+		if (node.left == null || node.right == null) {
+			root = rebuildPath(depth, node.left != null ? node.left : node.right);
+			return true;
+		}
+		// the successor takes the place of node, the path goes on down to it
+		int target = depth;
+		path[depth] = node;
+		wentLeft[depth] = false;
+		depth++;
+		Node successor = node.right;
+		while (successor.left != null) {
+			path[depth] = successor;
+			wentLeft[depth] = true;
+			depth++;
+			successor = successor.left;
+		}
+		Node sub = successor.right;
+		for (int d = depth - 1; d > target; d--)
+			sub = balance(path[d].key, path[d].info, sub, path[d].right);
+		path[target] = null;
+		root = rebuildPath(target, balance(successor.key, successor.info, node.left, sub));
+		clearPath(depth);
+		return true;
+	}
+
+	/**
+	 * public int[] keysToArray()
+	 *
+	 * returns a sorted array of the keys in the tree
+	 */
+	// complexity: O(n)
+	public int[] keysToArray() {
+		Node top = root;
+		int[] array = new int[size(top)];
+		Node[] stack = new Node[MAX_HEIGHT];
+		int depth = 0;
+		int location = 0;
+		Node node = top;
+		while (node != null || depth > 0) {
+			while (node != null) {
+				stack[depth++] = node;
+				node = node.left;
+			}
+			node = stack[--depth];
+			array[location++] = node.key;
+			node = node.right;
+		}
+		return array;
+	}
+
+	/**
+	 * public String[] infoToArray()
+	 *
+	 * returns the info of the items in the tree sorted by their keys
+	 */
+	// complexity: O(n)
+	public String[] infoToArray() {
+		Node top = root;
+		String[] array = new String[size(top)];
+		Node[] stack = new Node[MAX_HEIGHT];
+		int depth = 0;
+		int location = 0;
+		Node node = top;
+		while (node != null || depth > 0) {
+			while (node != null) {
+				stack[depth++] = node;
+				node = node.left;
+			}
+			node = stack[--depth];
+			array[location++] = node.info;
+			node = node.right;
+		}
+		return array;
+	}
+
+	/**
+	 * public AVLTree toAVLTree()
+	 *
+	 * returns a new AVLTree with the items the tree has now
+	 */
+	// complexity: O(n)
+	public AVLTree toAVLTree() {
+		PersistentAVLTree version = snapshot();
+		return AVLTree.fromSorted(version.keysToArray(), version.infoToArray());
+	}
+
+	/**
+	 * copies the search path path[0..depth-1] bottom up with sub as the new son
+	 * of its last node, rebalancing on the way. returns the new root.
+	 */
+	// complexity: O(depth)
+	private Node rebuildPath(int depth, Node sub) {
+		for (int d = depth - 1; d >= 0; d--) {
+			Node node = path[d];
+			if (wentLeft[d])
+				sub = balance(node.key, node.info, sub, node.right);
+			else
+				sub = balance(node.key, node.info, node.left, sub);
+			path[d] = null;
+		}
+		return sub;
+	}
+
+	/**
+	 * lets go of the nodes of an old version held by the path
+	 */
+	// complexity: O(depth)
+	private void clearPath(int depth) {
+		Arrays.fill(path, 0, depth, null);
+	}
+
+	// complexity: O(1)
+	private void checkWritable() {
+		if (readOnly)
+			throw new UnsupportedOperationException("a snapshot cannot be changed");
+	}
+
+	/**
+	 * returns a new node with the item (key, info) over l and r, which differ in
+	 * height by at most 2, rotating once or twice if they differ by 2
+	 */
+	// complexity: O(1)
+	private static Node balance(int key, String info, Node l, Node r) {
+		int leftHeight = height(l);
+		int rightHeight = height(r);
+		if (leftHeight > rightHeight + 1) {
+			if (height(l.left) >= height(l.right))
+				return new Node(l.key, l.info, l.left, new Node(key, info, l.right, r));
+			Node lr = l.right;
+			return new Node(lr.key, lr.info, new Node(l.key, l.info, l.left, lr.left),
+					new Node(key, info, lr.right, r));
+		}
+		if (rightHeight > leftHeight + 1) {
+			if (height(r.right) >= height(r.left))
+				return new Node(r.key, r.info, new Node(key, info, l, r.left), r.right);
+			Node rl = r.left;
+			return new Node(rl.key, rl.info, new Node(key, info, l, rl.left),
+					new Node(r.key, r.info, rl.right, r.right));
+		}
+		return new Node(key, info, l, r);
+	}
+
+	// complexity: O(1)
+	private static int height(Node node) {
+		return node == null ? -1 : node.height;
+	}
+
+	// complexity: O(1)
+	private static int size(Node node) {
+		return node == null ? 0 : node.size;
+	}
+
+	/**
+	 * An immutable node. A missing son is null and has height -1, as in AVLTree.
+	 */
+	static final class Node {
+
+		final int key;
+		final String info;
+		final int height;
+		final int size;
+		final Node left;
+		final Node right;
+
+		// Node constructor, height and size come from the sons
+		// complexity: O(1)
+		Node(int key, String info, Node left, Node right) {
+			this.key = key;
+			this.info = info;
+			this.left = left;
+			this.right = right;
+			this.height = Math.max(height(left), height(right)) + 1;
+			this.size = size(left) + size(right) + 1;
+		}
+	}
+}
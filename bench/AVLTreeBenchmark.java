@@ -0,0 +1,700 @@
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+
+/**
+ *
+ * AVLTreeBenchmark
+ *
+ * A benchmark harness for AVLTree with no dependencies. For every operation,
+ * tree size and key distribution it reports throughput, latency percentiles,
+ * bytes allocated per operation and the collections (count and ms) that
+ * happened while it was timed.
+ *
+ * build and run from the repository root:
+ *
+ * javac -d out *.java bench/*.java
+ * java -cp out AVLTreeBenchmark [-ops insert,search] [-sizes 1000,1000000]
+ * [-dists random,zipf] [-warmup 3] [-iterations 5] [-seed 42]
+ *
+ * ops: insert delete search minmax keysToArray infoToArray split join insertAll
+ * deleteAll (one insertAll/deleteAll operation is a batch of BATCH keys)
+ * genericInsert genericDelete genericSearch (the same as insert, delete and
+ * search on a GenericAVLTree with Integer keys in natural order, to compare
+ * with the int keyed AVLTree; the keys are boxed before timing)
+ * dists: sequential random zipf zigzag
+ *
+ * Latencies are taken in a separate pass that reads System.nanoTime() around
+ * every operation, so they include the cost of the timer (~20ns). Throughput
+ * and allocation come from a pass without per-operation timing.
+ *
+ */
+
+public class AVLTreeBenchmark {
+
+	static final String[] ALL_OPS = { "insert", "delete", "search", "minmax", "keysToArray", "infoToArray",
+			"split", "join", "insertAll", "deleteAll", "genericInsert", "genericDelete", "genericSearch" };
+	// keys per insertAll/deleteAll call
+	static final int BATCH = 10_000;
+	static final String[] ALL_DISTS = { "sequential", "random", "zipf", "zigzag" };
+
+	// results are folded in here so the JIT can't drop the measured calls
+	static volatile long sink;
+
+	public static void main(String[] args) {
+		String[] ops = ALL_OPS;
+		int[] sizes = { 1_000, 100_000, 1_000_000 };
+		String[] dists = ALL_DISTS;
+		int warmup = 3;
+		int iterations = 5;
+		long seed = 42;
+		for (int i = 0; i + 1 < args.length; i += 2) {
+			String value = args[i + 1];
+			switch (args[i]) {
+			case "-ops":
+				ops = value.split(",");
+				break;
+			case "-sizes":
+				sizes = Arrays.stream(value.split(",")).mapToInt(Integer::parseInt).toArray();
+				break;
+			case "-dists":
+				dists = value.split(",");
+				break;
+			case "-warmup":
+				warmup = Integer.parseInt(value);
+				break;
+			case "-iterations":
+				iterations = Integer.parseInt(value);
+				break;
+			case "-seed":
+				seed = Long.parseLong(value);
+				break;
+			default:
+				throw new IllegalArgumentException("unknown option " + args[i]);
+			}
+		}
+
+		System.out.printf("%-12s %-10s %10s %14s %10s %10s %10s %10s %12s %8s %8s%n", "op", "dist", "size",
+				"ops/s", "p50 ns", "p90 ns", "p99 ns", "p99.9 ns", "B/op", "gc", "gc ms");
+		for (String op : ops)
+			for (int size : sizes)
+				for (String dist : dists)
+					run(op, size, dist, warmup, iterations, seed);
+	}
+
+	/**
+	 * runs and prints one benchmark case
+	 */
+	static void run(String op, int size, String dist, int warmup, int iterations, long seed) {
+		try {
+			Workload workload = workload(op, keys(dist, size, seed), seed);
+			for (int i = 0; i < warmup; i++) {
+				workload.prepare();
+				workload.runAll();
+			}
+			Measurement m = new Measurement();
+			for (int i = 0; i < iterations; i++) {
+				workload.prepare();
+				m.start();
+				workload.runAll();
+				m.stop(workload.operations());
+				workload.prepare();
+				m.sampleLatencies(workload);
+			}
+			m.print(op, dist, size);
+		} catch (RuntimeException | OutOfMemoryError e) {
+			System.out.printf("%-12s %-10s %10d FAILED: %s%n", op, dist, size, e);
+		}
+	}
+
+	/**
+	 * returns the key sequence of a distribution, the operations use the keys in
+	 * this order
+	 */
+	static int[] keys(String dist, int n, long seed) {
+		SplittableRandom random = new SplittableRandom(seed);
+		int[] keys = new int[n];
+		switch (dist) {
+		case "sequential":
+			for (int i = 0; i < n; i++)
+				keys[i] = i;
+			return keys;
+		case "random":
+			for (int i = 0; i < n; i++)
+				keys[i] = i;
+			for (int i = n - 1; i > 0; i--) {
+				int j = random.nextInt(i + 1);
+				int t = keys[i];
+				keys[i] = keys[j];
+				keys[j] = t;
+			}
+			return keys;
+		case "zipf":
+			// keys 0..n-1 drawn with Zipf(0.99) popularity, hot keys repeat
+			Zipf zipf = new Zipf(n, 0.99);
+			for (int i = 0; i < n; i++)
+				keys[i] = zipf.next(random);
+			return keys;
+		case "zigzag":
+			// 0, n-1, 1, n-2, ... every insert goes to the opposite end
+			for (int i = 0, lo = 0, hi = n - 1; i < n; i++)
+				keys[i] = (i & 1) == 0 ? lo++ : hi--;
+			return keys;
+		default:
+			throw new IllegalArgumentException("unknown distribution " + dist);
+		}
+	}
+
+	static Workload workload(String op, int[] keys, long seed) {
+		switch (op) {
+		case "insert":
+			return new Insert(keys);
+		case "delete":
+			return new Delete(keys);
+		case "search":
+			return new Search(keys);
+		case "minmax":
+			return new MinMax(keys);
+		case "keysToArray":
+			return new KeysToArray(keys);
+		case "infoToArray":
+			return new InfoToArray(keys);
+		case "split":
+			return new Split(keys, seed);
+		case "join":
+			return new Join(keys);
+		case "insertAll":
+			return new InsertAll(keys);
+		case "deleteAll":
+			return new DeleteAll(keys);
+		case "genericInsert":
+			return new GenericInsert(keys);
+		case "genericDelete":
+			return new GenericDelete(keys);
+		case "genericSearch":
+			return new GenericSearch(keys);
+		default:
+			throw new IllegalArgumentException("unknown op " + op);
+		}
+	}
+
+	/**
+	 * a tree holding every key of the sequence (repeats inserted once)
+	 */
+	static AVLTree build(int[] keys) {
+		AVLTree tree = new AVLTree();
+		for (int key : keys)
+			tree.insert(key, "v");
+		return tree;
+	}
+
+	/**
+	 * One benchmarked operation. prepare() is not timed, runAll() runs every
+	 * operation in a tight loop, run(i) runs operation i alone for the latency
+	 * pass.
+	 */
+	abstract static class Workload {
+		final int[] keys;
+
+		Workload(int[] keys) {
+			this.keys = keys;
+		}
+
+		void prepare() {
+		}
+
+		int operations() {
+			return keys.length;
+		}
+
+		abstract void runAll();
+
+		abstract void run(int i);
+	}
+
+	static final class Insert extends Workload {
+		AVLTree tree;
+
+		Insert(int[] keys) {
+			super(keys);
+		}
+
+		void prepare() {
+			tree = new AVLTree();
+		}
+
+		void runAll() {
+			long s = 0;
+			for (int key : keys)
+				s += tree.insert(key, "v");
+			sink += s;
+		}
+
+		void run(int i) {
+			sink += tree.insert(keys[i], "v");
+		}
+	}
+
+	static final class Delete extends Workload {
+		AVLTree tree;
+
+		Delete(int[] keys) {
+			super(keys);
+		}
+
+		void prepare() {
+			tree = build(keys);
+		}
+
+		void runAll() {
+			long s = 0;
+			for (int key : keys)
+				s += tree.delete(key);
+			sink += s;
+		}
+
+		void run(int i) {
+			sink += tree.delete(keys[i]);
+		}
+	}
+
+	static final class Search extends Workload {
+		final AVLTree tree;
+
+		Search(int[] keys) {
+			super(keys);
+			tree = build(keys);
+		}
+
+		void runAll() {
+			long s = 0;
+			for (int key : keys)
+				if (tree.search(key) != null)
+					s++;
+			sink += s;
+		}
+
+		void run(int i) {
+			if (tree.search(keys[i]) != null)
+				sink++;
+		}
+	}
+
+	static final class MinMax extends Workload {
+		// volatile so the loop can't hoist min() and max() out of it
+		volatile AVLTree tree;
+
+		MinMax(int[] keys) {
+			super(keys);
+			tree = build(keys);
+		}
+
+		void runAll() {
+			long s = 0;
+			for (int i = 0; i < keys.length; i++) {
+				AVLTree t = tree;
+				s += t.min().length() + t.max().length();
+			}
+			sink += s;
+		}
+
+		void run(int i) {
+			AVLTree t = tree;
+			sink += t.min().length() + t.max().length();
+		}
+	}
+
+	static final class KeysToArray extends Workload {
+		final AVLTree tree;
+
+		KeysToArray(int[] keys) {
+			super(keys);
+			tree = build(keys);
+		}
+
+		int operations() {
+			return repeats(tree.size());
+		}
+
+		void runAll() {
+			for (int i = operations(); i > 0; i--)
+				sink += tree.keysToArray().length;
+		}
+
+		void run(int i) {
+			sink += tree.keysToArray().length;
+		}
+	}
+
+	static final class InfoToArray extends Workload {
+		final AVLTree tree;
+
+		InfoToArray(int[] keys) {
+			super(keys);
+			tree = build(keys);
+		}
+
+		int operations() {
+			return repeats(tree.size());
+		}
+
+		void runAll() {
+			for (int i = operations(); i > 0; i--)
+				sink += tree.infoToArray().length;
+		}
+
+		void run(int i) {
+			sink += tree.infoToArray().length;
+		}
+	}
+
+	/**
+	 * splits freshly built trees at a random key of each
+	 */
+	static final class Split extends Workload {
+		final SplittableRandom random;
+		final int[] distinct;
+		AVLTree[] trees;
+		int[] at;
+
+		Split(int[] keys, long seed) {
+			super(keys);
+			random = new SplittableRandom(seed);
+			distinct = Arrays.stream(keys).distinct().toArray();
+		}
+
+		int operations() {
+			return Math.max(1, Math.min(64, 1_000_000 / keys.length));
+		}
+
+		void prepare() {
+			trees = new AVLTree[operations()];
+			at = new int[trees.length];
+			for (int i = 0; i < trees.length; i++) {
+				trees[i] = build(keys);
+				at[i] = distinct[random.nextInt(distinct.length)];
+			}
+		}
+
+		void runAll() {
+			for (int i = 0; i < trees.length; i++)
+				run(i);
+		}
+
+		void run(int i) {
+			sink += trees[i].split(at[i]).length;
+		}
+	}
+
+	/**
+	 * joins pairs of freshly built trees, the keys go to the lower tree and the
+	 * same keys shifted above them to the upper tree
+	 */
+	static final class Join extends Workload {
+		final int shift;
+		AVLTree[] lower;
+		AVLTree[] upper;
+
+		Join(int[] keys) {
+			super(keys);
+			shift = Arrays.stream(keys).max().orElse(0) + 2;
+		}
+
+		int operations() {
+			return Math.max(1, Math.min(64, 1_000_000 / keys.length));
+		}
+
+		void prepare() {
+			lower = new AVLTree[operations()];
+			upper = new AVLTree[lower.length];
+			for (int i = 0; i < lower.length; i++) {
+				lower[i] = build(keys);
+				upper[i] = new AVLTree();
+				for (int key : keys)
+					upper[i].insert(key + shift, "v");
+			}
+		}
+
+		void runAll() {
+			for (int i = 0; i < lower.length; i++)
+				run(i);
+		}
+
+		void run(int i) {
+			sink += lower[i].join(lower[i].createNode(shift - 1, "v"), upper[i]);
+		}
+	}
+
+	/**
+	 * the key sequence cut into batches of BATCH keys
+	 */
+	static int[][] batches(int[] keys) {
+		int[][] batches = new int[(keys.length + BATCH - 1) / BATCH][];
+		for (int i = 0; i < batches.length; i++)
+			batches[i] = Arrays.copyOfRange(keys, i * BATCH, Math.min(keys.length, (i + 1) * BATCH));
+		return batches;
+	}
+
+	/**
+	 * inserts the keys into an empty tree BATCH keys per insertAll call
+	 */
+	static final class InsertAll extends Workload {
+		final int[][] batches;
+		final String[][] infos;
+		AVLTree tree;
+
+		InsertAll(int[] keys) {
+			super(keys);
+			batches = batches(keys);
+			infos = new String[batches.length][];
+			for (int i = 0; i < batches.length; i++) {
+				infos[i] = new String[batches[i].length];
+				Arrays.fill(infos[i], "v");
+			}
+		}
+
+		int operations() {
+			return batches.length;
+		}
+
+		void prepare() {
+			tree = new AVLTree();
+		}
+
+		void runAll() {
+			for (int i = 0; i < batches.length; i++)
+				run(i);
+		}
+
+		void run(int i) {
+			sink += tree.insertAll(batches[i], infos[i]).getRebalanceOperations();
+		}
+	}
+
+	/**
+	 * deletes the keys from a full tree BATCH keys per deleteAll call
+	 */
+	static final class DeleteAll extends Workload {
+		final int[][] batches;
+		AVLTree tree;
+
+		DeleteAll(int[] keys) {
+			super(keys);
+			batches = batches(keys);
+		}
+
+		int operations() {
+			return batches.length;
+		}
+
+		void prepare() {
+			tree = build(keys);
+		}
+
+		void runAll() {
+			for (int i = 0; i < batches.length; i++)
+				run(i);
+		}
+
+		void run(int i) {
+			sink += tree.deleteAll(batches[i]).getRebalanceOperations();
+		}
+	}
+
+	/**
+	 * the keys boxed, so the generic workloads time the tree and not the boxing
+	 */
+	static Integer[] boxed(int[] keys) {
+		Integer[] boxed = new Integer[keys.length];
+		for (int i = 0; i < keys.length; i++)
+			boxed[i] = keys[i];
+		return boxed;
+	}
+
+	/**
+	 * a generic tree holding every key of the sequence (repeats inserted once)
+	 */
+	static GenericAVLTree<Integer, String> buildGeneric(Integer[] keys) {
+		GenericAVLTree<Integer, String> tree = new GenericAVLTree<>();
+		for (Integer key : keys)
+			tree.insert(key, "v");
+		return tree;
+	}
+
+	static final class GenericInsert extends Workload {
+		final Integer[] boxed;
+		GenericAVLTree<Integer, String> tree;
+
+		GenericInsert(int[] keys) {
+			super(keys);
+			boxed = boxed(keys);
+		}
+
+		void prepare() {
+			tree = new GenericAVLTree<>();
+		}
+
+		void runAll() {
+			long s = 0;
+			for (Integer key : boxed)
+				s += tree.insert(key, "v");
+			sink += s;
+		}
+
+		void run(int i) {
+			sink += tree.insert(boxed[i], "v");
+		}
+	}
+
+	static final class GenericDelete extends Workload {
+		final Integer[] boxed;
+		GenericAVLTree<Integer, String> tree;
+
+		GenericDelete(int[] keys) {
+			super(keys);
+			boxed = boxed(keys);
+		}
+
+		void prepare() {
+			tree = buildGeneric(boxed);
+		}
+
+		void runAll() {
+			long s = 0;
+			for (Integer key : boxed)
+				s += tree.delete(key);
+			sink += s;
+		}
+
+		void run(int i) {
+			sink += tree.delete(boxed[i]);
+		}
+	}
+
+	static final class GenericSearch extends Workload {
+		final Integer[] boxed;
+		final GenericAVLTree<Integer, String> tree;
+
+		GenericSearch(int[] keys) {
+			super(keys);
+			boxed = boxed(keys);
+			tree = buildGeneric(boxed);
+		}
+
+		void runAll() {
+			long s = 0;
+			for (Integer key : boxed)
+				if (tree.search(key) != null)
+					s++;
+			sink += s;
+		}
+
+		void run(int i) {
+			if (tree.search(boxed[i]) != null)
+				sink++;
+		}
+	}
+
+	/**
+	 * how many times a whole-tree operation runs per iteration
+	 */
+	static int repeats(int size) {
+		return Math.max(1, Math.min(1000, 1_000_000 / Math.max(size, 1)));
+	}
+
+	/**
+	 * Zipf sampling over 0..n-1 by binary search in the cumulative weights
+	 */
+	static final class Zipf {
+		final double[] cumulative;
+
+		Zipf(int n, double s) {
+			cumulative = new double[n];
+			double sum = 0;
+			for (int i = 0; i < n; i++) {
+				sum += 1 / Math.pow(i + 1, s);
+				cumulative[i] = sum;
+			}
+		}
+
+		int next(SplittableRandom random) {
+			double u = random.nextDouble() * cumulative[cumulative.length - 1];
+			int i = Arrays.binarySearch(cumulative, u);
+			return i >= 0 ? i : Math.min(-i - 1, cumulative.length - 1);
+		}
+	}
+
+	/**
+	 * collects timings, allocation and GC activity of the timed passes
+	 */
+	static final class Measurement {
+		final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory
+				.getThreadMXBean();
+		final List<GarbageCollectorMXBean> collectors = ManagementFactory.getGarbageCollectorMXBeans();
+		long startNanos;
+		long startBytes;
+		long startGcCount;
+		long startGcTime;
+		long totalNanos;
+		long totalBytes;
+		long totalOps;
+		long totalGcCount;
+		long totalGcTime;
+		final List<long[]> latencies = new ArrayList<>();
+
+		void start() {
+			startGcCount = gcCount();
+			startGcTime = gcTime();
+			startBytes = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+			startNanos = System.nanoTime();
+		}
+
+		void stop(int ops) {
+			totalNanos += System.nanoTime() - startNanos;
+			totalBytes += threads.getThreadAllocatedBytes(Thread.currentThread().getId()) - startBytes;
+			totalOps += ops;
+			totalGcCount += gcCount() - startGcCount;
+			totalGcTime += gcTime() - startGcTime;
+		}
+
+		void sampleLatencies(Workload workload) {
+			long[] samples = new long[workload.operations()];
+			for (int i = 0; i < samples.length; i++) {
+				long t0 = System.nanoTime();
+				workload.run(i);
+				samples[i] = System.nanoTime() - t0;
+			}
+			latencies.add(samples);
+		}
+
+		void print(String op, String dist, int size) {
+			long[] all = latencies.stream().flatMapToLong(Arrays::stream).sorted().toArray();
+			System.out.printf("%-12s %-10s %10d %14.0f %10d %10d %10d %10d %12.1f %8d %8d%n", op, dist, size,
+					totalOps * 1e9 / totalNanos, percentile(all, 0.5), percentile(all, 0.9), percentile(all, 0.99),
+					percentile(all, 0.999), totalBytes / (double) totalOps, totalGcCount, totalGcTime);
+		}
+
+		static long percentile(long[] sorted, double p) {
+			if (sorted.length == 0)
+				return 0;
+			return sorted[(int) Math.min(sorted.length - 1, Math.ceil(p * sorted.length) - 1)];
+		}
+
+		long gcCount() {
+			long count = 0;
+			for (GarbageCollectorMXBean gc : collectors)
+				count += Math.max(0, gc.getCollectionCount());
+			return count;
+		}
+
+		long gcTime() {
+			long time = 0;
+			for (GarbageCollectorMXBean gc : collectors)
+				time += Math.max(0, gc.getCollectionTime());
+			return time;
+		}
+	}
+}
@@ -0,0 +1,64 @@
+#!/bin/sh
+# Generates the primitive-specialized AVL trees and GenericAVLTree from
+# PrimitiveAVLTree.java.template and ArrayAVLTree from ArrayAVLTree.java.template
+# into the repository root. Run from anywhere: sh gen/generate.sh
+set -e
+dir=$(cd "$(dirname "$0")" && pwd)
+template="$dir/PrimitiveAVLTree.java.template"
+
+# generate <TreeName> <Primitive|Generic> <Placeholder=value>...
+# keeps the lines between $Primitive{$ and $}Primitive$ or between $Generic{$
+# and $}Generic$, then replaces every $Placeholder$ by its value. the
+# $Suppress$ line is dropped when no annotation is given
+generate() {
+	name=$1
+	variant=$2
+	shift 2
+	script=
+	for pair in "$@"; do
+		script="$script
+s/\\\$${pair%%=*}\\\$/${pair#*=}/g"
+	done
+	awk -v variant="$variant" '
+		/^\$(Primitive|Generic)\{\$$/ { block = substr($0, 2, length($0) - 3); next }
+		/^\$\}(Primitive|Generic)\$$/ { block = ""; next }
+		/^\$Engine(Begin|End)\$$/ { next }
+		block == "" || block == variant' "$template" |
+		sed -e "$script" -e '/^\$Suppress\$$/d' > "$dir/../$name.java"
+}
+
+generate IntIntAVLTree Primitive 'Tree=IntIntAVLTree' 'TreeName=IntIntAVLTree' 'TreeNew=IntIntAVLTree' \
+	'TreeArgs=noValue' 'K=int' 'KStore=int' 'KCast=' 'KArray=int[]' 'KNew=int' 'V=int' 'VStore=int' \
+	'VNone=0' 'NoValue=noValue' 'VCast=' 'VArray=int[]' 'VNew=int'
+generate IntLongAVLTree Primitive 'Tree=IntLongAVLTree' 'TreeName=IntLongAVLTree' 'TreeNew=IntLongAVLTree' \
+	'TreeArgs=noValue' 'K=int' 'KStore=int' 'KCast=' 'KArray=int[]' 'KNew=int' 'V=long' 'VStore=long' \
+	'VNone=0L' 'NoValue=noValue' 'VCast=' 'VArray=long[]' 'VNew=long'
+generate LongObjAVLTree Primitive 'Tree=LongObjAVLTree<V>' 'TreeName=LongObjAVLTree' 'TreeNew=LongObjAVLTree<>' \
+	'TreeArgs=noValue' 'K=long' 'KStore=long' 'KCast=' 'KArray=long[]' 'KNew=long' 'V=V' 'VStore=Object' \
+	'VNone=null' 'NoValue=noValue' 'VCast=(V) ' 'VArray=Object[]' 'VNew=Object' \
+	'Suppress=@SuppressWarnings({ "unchecked", "rawtypes" })'
+# the comparator hook of GenericAVLTree is its compare method, the keys are
+# Objects compared by prefix and comparator instead of primitives
+generate GenericAVLTree Generic 'Tree=GenericAVLTree<K, V>' 'TreeName=GenericAVLTree' 'TreeNew=GenericAVLTree<>' \
+	'TreeArgs=comparator, prefix' 'K=K' 'KStore=Object' 'KCast=(K) ' 'KArray=Object[]' 'KNew=Object' \
+	'V=V' 'VStore=Object' 'VNone=null' 'NoValue=null' 'VCast=(V) ' 'VArray=Object[]' 'VNew=Object' \
+	'Suppress=@SuppressWarnings({ "unchecked", "rawtypes" })'
+
+# ArrayAVLTree.Store gets the node engine between $EngineBegin$ and $EngineEnd$,
+# with static methods on nodes turned into Store methods on int handles:
+# node.left.size becomes size[left[node]] and null (no parent) becomes NONE
+engine=$(mktemp)
+trap 'rm -f "$engine"' EXIT
+sed -n '/\$EngineBegin\$/,/\$EngineEnd\$/p' "$template" | sed \
+	-e '/\$Engine\(Begin\|End\)\$/d' \
+	-e 's/static //' \
+	-e 's/\<Node\>/int/g' \
+	-e 's/\<null\>/NONE/g' \
+	-e ':field' \
+	-e 's/\<\([a-zA-Z][a-zA-Z]*\(\[[^]]*\]\)\{0,1\}\)\.\(left\|right\|parent\|height\|size\|key\)\>/\3[\1]/' \
+	-e 't field' \
+	-e 's/^\(.\)/\t\1/' > "$engine"
+sed -e "/^\\\$Engine\\\$\$/{
+r $engine
+d
+}" "$dir/ArrayAVLTree.java.template" > "$dir/../ArrayAVLTree.java"
@@ -0,0 +1,508 @@
+import java.util.Arrays;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.TreeMap;
+
+/**
+ *
+ * AVLTreeDifferential
+ *
+ * A randomized differential check with no dependencies. It runs the same
+ * random operations on an AVLTree and on a java.util.TreeMap, with keys from
+ * the whole int range, and after every step compares what the two return. The
+ * tree structure (order, parents, heights, sizes, balance) is checked as well.
+ * Filters are checked with predicates that throw, which must leave the tree as
+ * it was. LongObjAVLTree is run the same way over the whole long range, and
+ * ArrayAVLTree over the int range, where its split is also checked around the
+ * keys of a small tree and on empty trees.
+ *
+ * Keys are drawn uniformly from Integer.MIN_VALUE..Integer.MAX_VALUE, from a
+ * few keys at the edges (MIN_VALUE, MAX_VALUE, -1, 0 and their neighbours), and
+ * from small windows around them so the edge keys collide and get deleted,
+ * split around and joined around often. -1 used to mark the virtual node, so
+ * it is one of the edge keys.
+ *
+ * build and run from the repository root:
+ *
+ * javac -d out *.java test/*.java
+ * java -cp out AVLTreeDifferential [-rounds 200] [-steps 2000] [-seed 42]
+ *
+ * Prints one line per tree and exits with an AssertionError (and a non-zero
+ * status) at the first difference, naming the seed, round and step.
+ *
+ */
+
+public class AVLTreeDifferential {
+
+	static final int[] EDGES = { Integer.MIN_VALUE, Integer.MIN_VALUE + 1, -2, -1, 0, 1, Integer.MAX_VALUE - 1,
+			Integer.MAX_VALUE };
+	static final long[] LONG_EDGES = { Long.MIN_VALUE, Long.MIN_VALUE + 1, Integer.MIN_VALUE, -2, -1, 0, 1,
+			Integer.MAX_VALUE, Long.MAX_VALUE - 1, Long.MAX_VALUE };
+
+	public static void main(String[] args) {
+		int rounds = 200;
+		int steps = 2000;
+		long seed = 42;
+		for (int i = 0; i + 1 < args.length; i += 2) {
+			String value = args[i + 1];
+			switch (args[i]) {
+			case "-rounds":
+				rounds = Integer.parseInt(value);
+				break;
+			case "-steps":
+				steps = Integer.parseInt(value);
+				break;
+			case "-seed":
+				seed = Long.parseLong(value);
+				break;
+			default:
+				throw new IllegalArgumentException("unknown option " + args[i]);
+			}
+		}
+		SplittableRandom random = new SplittableRandom(seed);
+		long operations = 0;
+		for (int round = 0; round < rounds; round++)
+			operations += new IntRound(random.split(), seed, round).run(steps);
+		System.out.printf("AVLTree        ok: %d rounds, %d operations, seed %d%n", rounds, operations, seed);
+		largeFilter(random.split());
+		System.out.println("AVLTree        ok: filters that fork, with a predicate that throws");
+		operations = 0;
+		for (int round = 0; round < rounds; round++)
+			operations += new LongRound(random.split(), seed, round).run(steps);
+		System.out.printf("LongObjAVLTree ok: %d rounds, %d operations, seed %d%n", rounds, operations, seed);
+		operations = 0;
+		for (int round = 0; round < rounds; round++)
+			operations += new ArrayRound(random.split(), seed, round).run(steps);
+		System.out.printf("ArrayAVLTree   ok: %d rounds, %d operations, seed %d%n", rounds, operations, seed);
+		arraySplits();
+		System.out.println("ArrayAVLTree   ok: splits around present and absent keys and of empty trees");
+	}
+
+	/**
+	 * filters a tree large enough for filter to fork, first with a predicate that
+	 * throws at a random key, which must leave every item in place, then with one
+	 * that keeps the even keys
+	 */
+	static void largeFilter(SplittableRandom random) {
+		int n = 100_000;
+		int[] keys = new int[n];
+		String[] infos = new String[n];
+		for (int i = 0; i < n; i++) {
+			keys[i] = 3 * i - n;
+			infos[i] = "i" + i;
+		}
+		AVLTree tree = AVLTree.fromSorted(keys, infos);
+		int bad = keys[random.nextInt(n)];
+		try {
+			tree.filter((key, info) -> {
+				if (key == bad)
+					throw new IllegalStateException("key " + key);
+				return (key & 1) == 0;
+			});
+			throw new AssertionError("filter did not pass on the exception at " + bad);
+		} catch (IllegalStateException e) {
+			// expected
+		}
+		if (!Arrays.equals(tree.keysToArray(), keys) || !Arrays.equals(tree.infoToArray(), infos))
+			throw new AssertionError("filter that threw at " + bad + " changed the tree");
+		tree.filter((key, info) -> (key & 1) == 0);
+		int[] even = Arrays.stream(keys).filter(key -> (key & 1) == 0).toArray();
+		if (!Arrays.equals(tree.keysToArray(), even) || tree.select(even.length / 2) != even[even.length / 2])
+			throw new AssertionError("filter of the even keys");
+	}
+
+	/**
+	 * splits {10, 20, 30, 40, 50} around each of its keys and the keys between
+	 * and beyond them, and splits empty trees, against a TreeMap. The parts must
+	 * keep every other key, and the store they share must still hand out and
+	 * reuse slots afterwards.
+	 */
+	static void arraySplits() {
+		for (int x = 5; x <= 55; x += 5) {
+			ArrayAVLTree tree = new ArrayAVLTree();
+			TreeMap<Integer, String> map = new TreeMap<>();
+			for (int k = 10; k <= 50; k += 10) {
+				tree.insert(k, "i" + k);
+				map.put(k, "i" + k);
+			}
+			ArrayAVLTree[] parts = tree.split(x);
+			String where = "split " + x;
+			compare(tree, new TreeMap<>(), where + ", the tree");
+			compare(parts[0], map.headMap(x, false), where + ", left part");
+			compare(parts[1], map.tailMap(x, false), where + ", right part");
+			refill(parts[0], map.headMap(x, false), where + ", left part");
+		}
+		ArrayAVLTree empty = new ArrayAVLTree();
+		ArrayAVLTree[] parts = empty.split(7);
+		compare(parts[0], new TreeMap<>(), "split of an empty tree, left part");
+		compare(parts[1], new TreeMap<>(), "split of an empty tree, right part");
+		ArrayAVLTree[] again = parts[0].split(7);
+		refill(again[0], new TreeMap<>(), "second split of an empty tree");
+		refill(again[1], new TreeMap<>(), "second split of an empty tree");
+	}
+
+	/**
+	 * inserts into and deletes from t, which reuses the slots on the free list
+	 * of its store, and compares it with m after each step
+	 */
+	static void refill(ArrayAVLTree t, Map<Integer, String> m, String what) {
+		TreeMap<Integer, String> map = new TreeMap<>(m);
+		for (int k = 1; k <= 60; k += 3) {
+			t.insert(k, "r" + k);
+			map.putIfAbsent(k, "r" + k);
+			compare(t, map, what + ", insert " + k);
+		}
+		for (int k = 1; k <= 60; k += 6) {
+			t.delete(k);
+			map.remove(k);
+			compare(t, map, what + ", delete " + k);
+		}
+	}
+
+	static void compare(ArrayAVLTree t, Map<Integer, String> m, String what) {
+		int[] keys = new int[m.size()];
+		String[] infos = new String[m.size()];
+		int i = 0;
+		for (Map.Entry<Integer, String> e : m.entrySet()) {
+			keys[i] = e.getKey();
+			infos[i++] = e.getValue();
+		}
+		if (t.size() != m.size() || t.empty() != m.isEmpty() || !Arrays.equals(t.keysToArray(), keys)
+				|| !Arrays.equals(t.infoToArray(), infos)
+				|| !equal(t.min(), m.isEmpty() ? null : infos[0])
+				|| !equal(t.max(), m.isEmpty() ? null : infos[infos.length - 1]))
+			throw new AssertionError(what + ": keys " + Arrays.toString(t.keysToArray()) + ", expected "
+					+ Arrays.toString(keys));
+	}
+
+	/**
+	 * a key from the whole range, an edge key, or a key near an edge key
+	 */
+	static int nextKey(SplittableRandom random) {
+		switch (random.nextInt(4)) {
+		case 0:
+			return random.nextInt();
+		case 1:
+			return EDGES[random.nextInt(EDGES.length)];
+		default:
+			// wraps around at the ends, which is one more way to reach them
+			return EDGES[random.nextInt(EDGES.length)] + random.nextInt(-8, 9);
+		}
+	}
+
+	static long nextLongKey(SplittableRandom random) {
+		switch (random.nextInt(4)) {
+		case 0:
+			return random.nextLong();
+		case 1:
+			return LONG_EDGES[random.nextInt(LONG_EDGES.length)];
+		default:
+			return LONG_EDGES[random.nextInt(LONG_EDGES.length)] + random.nextInt(-8, 9);
+		}
+	}
+
+	/**
+	 * One round of random operations on an AVLTree and a TreeMap, starting empty.
+	 */
+	static final class IntRound {
+
+		final SplittableRandom random;
+		final String where;
+		AVLTree tree = new AVLTree();
+		TreeMap<Integer, String> map = new TreeMap<>();
+		int step;
+
+		IntRound(SplittableRandom random, long seed, int round) {
+			this.random = random;
+			this.where = "seed " + seed + " round " + round;
+		}
+
+		long run(int steps) {
+			for (step = 0; step < steps; step++) {
+				int k = nextKey(random);
+				int op = random.nextInt(21);
+				if (op < 10) {
+					String info = "i" + step;
+					int result = tree.insert(k, info);
+					boolean added = map.putIfAbsent(k, info) == null;
+					check(added ? result >= 0 : result == -1, "insert " + k + " returned " + result);
+				} else if (op < 16) {
+					int result = tree.delete(k);
+					boolean removed = map.remove(k) != null;
+					check(removed ? result >= 0 : result == -1, "delete " + k + " returned " + result);
+				} else if (op < 19) {
+					check(equal(tree.search(k), map.get(k)), "search " + k);
+					check(tree.rank(k) == map.headMap(k).size(), "rank " + k);
+				} else if (op < 20) {
+					splitAndJoin(k);
+				} else {
+					filter(k);
+				}
+				if (step % 64 == 0 || op >= 19)
+					compare();
+			}
+			compare();
+			return steps;
+		}
+
+		/**
+		 * splits around k, checks both parts, and joins them again around k, which
+		 * puts k in the tree if it was not there
+		 */
+		void splitAndJoin(int k) {
+			String info = map.containsKey(k) ? map.get(k) : "j" + step;
+			AVLTree[] parts = tree.split(k);
+			check(tree.empty(), "split " + k + " left the tree with items");
+			compare(parts[0], map.headMap(k, false), "left part of split " + k);
+			compare(parts[1], map.tailMap(k, false), "right part of split " + k);
+			boolean leftJoinsRight = random.nextBoolean();
+			AVLTree into = leftJoinsRight ? parts[0] : parts[1];
+			AVLTree other = leftJoinsRight ? parts[1] : parts[0];
+			AVLTree.AVLNode x = into.createNode(k, info);
+			int expected = Math.abs(height(into) - height(other)) + 1;
+			int result = into.join(x, other);
+			check(result == expected, "join around " + k + " returned " + result + ", expected " + expected);
+			check(other.empty(), "join around " + k + " left t with items");
+			map.put(k, info);
+			tree = into;
+		}
+
+		/**
+		 * keeps the keys below k and the even keys, or half the time throws at the
+		 * first key from k on, which must leave the tree as it was
+		 */
+		void filter(int k) {
+			boolean throwing = random.nextBoolean();
+			boolean expectThrow = throwing && map.ceilingKey(k) != null;
+			try {
+				tree.filter((key, info) -> {
+					if (throwing && key >= k)
+						throw new IllegalStateException("key " + key);
+					return key < k || (key & 1) == 0;
+				});
+				check(!expectThrow, "filter from " + k + " did not pass on the exception");
+				map.keySet().removeIf(key -> key >= k && (key & 1) != 0);
+			} catch (IllegalStateException e) {
+				check(expectThrow, "filter from " + k + " threw " + e.getMessage());
+			}
+		}
+
+		void compare() {
+			compare(tree, map, "tree");
+		}
+
+		void compare(AVLTree t, Map<Integer, String> m, String what) {
+			check(t.size() == m.size(), what + ": size " + t.size() + ", expected " + m.size());
+			check(t.empty() == m.isEmpty(), what + ": empty");
+			int[] keys = new int[m.size()];
+			String[] infos = new String[m.size()];
+			int i = 0;
+			for (Map.Entry<Integer, String> e : m.entrySet()) {
+				keys[i] = e.getKey();
+				infos[i++] = e.getValue();
+			}
+			check(Arrays.equals(t.keysToArray(), keys), what + ": keysToArray");
+			check(Arrays.equals(t.infoToArray(), infos), what + ": infoToArray");
+			check(equal(t.min(), m.isEmpty() ? null : infos[0]), what + ": min");
+			check(equal(t.max(), m.isEmpty() ? null : infos[infos.length - 1]), what + ": max");
+			if (!m.isEmpty()) {
+				int j = random.nextInt(keys.length);
+				check(t.select(j) == keys[j], what + ": select " + j);
+			}
+			AVLTree.IAVLNode root = t.getRoot();
+			if (root != null) {
+				check(root.getParent() == null, what + ": root has a parent");
+				checkSubtree(root, Long.MIN_VALUE, Long.MAX_VALUE, what);
+			}
+		}
+
+		/**
+		 * checks the subtree of node, all its keys are in (lo, hi), and returns
+		 * its height
+		 */
+		int checkSubtree(AVLTree.IAVLNode node, long lo, long hi, String what) {
+			if (!node.isRealNode()) {
+				check(node.getHeight() == -1 && node.getSize() == 0, what + ": virtual node with height or size");
+				return -1;
+			}
+			int k = node.getKey();
+			check(lo < k && k < hi, what + ": key " + k + " out of order");
+			AVLTree.IAVLNode left = node.getLeft();
+			AVLTree.IAVLNode right = node.getRight();
+			if (left.isRealNode())
+				check(left.getParent() == node, what + ": wrong parent under " + k);
+			if (right.isRealNode())
+				check(right.getParent() == node, what + ": wrong parent under " + k);
+			int hl = checkSubtree(left, lo, k, what);
+			int hr = checkSubtree(right, k, hi, what);
+			check(Math.abs(hl - hr) <= 1, what + ": " + k + " is not balanced");
+			check(node.getHeight() == Math.max(hl, hr) + 1, what + ": height of " + k);
+			check(node.getSize() == left.getSize() + right.getSize() + 1, what + ": size of " + k);
+			return node.getHeight();
+		}
+
+		void check(boolean ok, String message) {
+			if (!ok)
+				throw new AssertionError(where + " step " + step + ": " + message);
+		}
+	}
+
+	/**
+	 * One round of random operations on a LongObjAVLTree and a TreeMap.
+	 */
+	static final class LongRound {
+
+		final SplittableRandom random;
+		final String where;
+		LongObjAVLTree<String> tree = new LongObjAVLTree<>();
+		TreeMap<Long, String> map = new TreeMap<>();
+		int step;
+
+		LongRound(SplittableRandom random, long seed, int round) {
+			this.random = random;
+			this.where = "seed " + seed + " round " + round;
+		}
+
+		long run(int steps) {
+			for (step = 0; step < steps; step++) {
+				long k = nextLongKey(random);
+				int op = random.nextInt(20);
+				if (op < 10) {
+					String info = "i" + step;
+					int result = tree.insert(k, info);
+					boolean added = map.putIfAbsent(k, info) == null;
+					check(added ? result >= 0 : result == -1, "insert " + k + " returned " + result);
+				} else if (op < 16) {
+					int result = tree.delete(k);
+					boolean removed = map.remove(k) != null;
+					check(removed ? result >= 0 : result == -1, "delete " + k + " returned " + result);
+				} else if (op < 19) {
+					check(equal(tree.search(k), map.get(k)), "search " + k);
+					check(tree.contains(k) == map.containsKey(k), "contains " + k);
+				} else {
+					splitAndJoin(k);
+				}
+				if (step % 64 == 0 || op == 19)
+					compare(tree, map, "tree");
+			}
+			compare(tree, map, "tree");
+			return steps;
+		}
+
+		void splitAndJoin(long k) {
+			String info = map.containsKey(k) ? map.get(k) : "j" + step;
+			LongObjAVLTree<String>[] parts = tree.split(k);
+			check(tree.empty(), "split " + k + " left the tree with items");
+			compare(parts[0], map.headMap(k, false), "left part of split " + k);
+			compare(parts[1], map.tailMap(k, false), "right part of split " + k);
+			boolean leftJoinsRight = random.nextBoolean();
+			LongObjAVLTree<String> into = leftJoinsRight ? parts[0] : parts[1];
+			LongObjAVLTree<String> other = leftJoinsRight ? parts[1] : parts[0];
+			into.join(k, info, other);
+			check(other.empty(), "join around " + k + " left t with items");
+			map.put(k, info);
+			tree = into;
+		}
+
+		void compare(LongObjAVLTree<String> t, Map<Long, String> m, String what) {
+			check(t.size() == m.size(), what + ": size " + t.size() + ", expected " + m.size());
+			long[] keys = new long[m.size()];
+			Object[] infos = new Object[m.size()];
+			int i = 0;
+			for (Map.Entry<Long, String> e : m.entrySet()) {
+				keys[i] = e.getKey();
+				infos[i++] = e.getValue();
+			}
+			check(Arrays.equals(t.keysToArray(), keys), what + ": keysToArray");
+			check(Arrays.equals(t.infoToArray(), infos), what + ": infoToArray");
+			if (!m.isEmpty()) {
+				check(t.minKey() == keys[0], what + ": minKey");
+				check(t.maxKey() == keys[keys.length - 1], what + ": maxKey");
+			}
+		}
+
+		void check(boolean ok, String message) {
+			if (!ok)
+				throw new AssertionError(where + " step " + step + ": " + message);
+		}
+	}
+
+	/**
+	 * One round of random operations on an ArrayAVLTree and a TreeMap. Its splits
+	 * are around any key, present or not, and the parts share one store, so the
+	 * slots freed by deletes and splits are reused by later inserts and joins.
+	 */
+	static final class ArrayRound {
+
+		final SplittableRandom random;
+		final String where;
+		ArrayAVLTree tree = new ArrayAVLTree(16);
+		TreeMap<Integer, String> map = new TreeMap<>();
+		int step;
+
+		ArrayRound(SplittableRandom random, long seed, int round) {
+			this.random = random;
+			this.where = "seed " + seed + " round " + round;
+		}
+
+		long run(int steps) {
+			for (step = 0; step < steps; step++) {
+				int k = nextKey(random);
+				int op = random.nextInt(20);
+				if (op < 10) {
+					String info = "i" + step;
+					int result = tree.insert(k, info);
+					boolean added = map.putIfAbsent(k, info) == null;
+					check(added ? result >= 0 : result == -1, "insert " + k + " returned " + result);
+				} else if (op < 16) {
+					int result = tree.delete(k);
+					boolean removed = map.remove(k) != null;
+					check(removed ? result >= 0 : result == -1, "delete " + k + " returned " + result);
+				} else if (op < 19) {
+					check(equal(tree.search(k), map.get(k)), "search " + k);
+				} else {
+					splitAndJoin(k);
+				}
+				if (step % 64 == 0 || op == 19)
+					compare(tree, map, "tree");
+			}
+			compare(tree, map, "tree");
+			return steps;
+		}
+
+		void splitAndJoin(int k) {
+			String info = map.containsKey(k) ? map.get(k) : "j" + step;
+			ArrayAVLTree[] parts = tree.split(k);
+			check(tree.empty(), "split " + k + " left the tree with items");
+			compare(parts[0], map.headMap(k, false), "left part of split " + k);
+			compare(parts[1], map.tailMap(k, false), "right part of split " + k);
+			boolean leftJoinsRight = random.nextBoolean();
+			ArrayAVLTree into = leftJoinsRight ? parts[0] : parts[1];
+			ArrayAVLTree other = leftJoinsRight ? parts[1] : parts[0];
+			into.join(k, info, other);
+			check(other.empty(), "join around " + k + " left t with items");
+			map.put(k, info);
+			tree = into;
+		}
+
+		void compare(ArrayAVLTree t, Map<Integer, String> m, String what) {
+			AVLTreeDifferential.compare(t, m, where + " step " + step + ": " + what);
+		}
+
+		void check(boolean ok, String message) {
+			if (!ok)
+				throw new AssertionError(where + " step " + step + ": " + message);
+		}
+	}
+
+	/**
+	 * the height of the tree, -1 if it is empty
+	 */
+	static int height(AVLTree t) {
+		return t.empty() ? -1 : t.getRoot().getHeight();
+	}
+
+	static boolean equal(Object a, Object b) {
+		return a == null ? b == null : a.equals(b);
+	}
+}
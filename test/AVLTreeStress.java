@@ -0,0 +1,88 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ *
+ * AVLTreeStress
+ *
+ * A multi-threaded stress check with no dependencies. Many independent trees
+ * run at the same time on a thread pool, each one a round of
+ * AVLTreeDifferential against its own TreeMap (inserts, deletes, searches,
+ * splits and joins), so every thread hands the shared VIRTUAL_NODE around as
+ * the children of leaves and the sides of splits. No tree may see another
+ * tree's changes, and VIRTUAL_NODE must look the same after every tree.
+ *
+ * build and run from the repository root:
+ *
+ * javac -d out *.java test/*.java
+ * java -cp out AVLTreeStress [-trees 2000] [-threads 64] [-steps 2000] [-seed 42]
+ *
+ * Prints one line and exits with the first AssertionError of any tree.
+ *
+ */
+
+public class AVLTreeStress {
+
+	public static void main(String[] args) throws Exception {
+		int trees = 2000;
+		int threads = 64;
+		int steps = 2000;
+		long seed = 42;
+		for (int i = 0; i + 1 < args.length; i += 2) {
+			String value = args[i + 1];
+			switch (args[i]) {
+			case "-trees":
+				trees = Integer.parseInt(value);
+				break;
+			case "-threads":
+				threads = Integer.parseInt(value);
+				break;
+			case "-steps":
+				steps = Integer.parseInt(value);
+				break;
+			case "-seed":
+				seed = Long.parseLong(value);
+				break;
+			default:
+				throw new IllegalArgumentException("unknown option " + args[i]);
+			}
+		}
+		SplittableRandom random = new SplittableRandom(seed);
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<Long>> results = new ArrayList<>();
+			for (int tree = 0; tree < trees; tree++) {
+				AVLTreeDifferential.IntRound round = new AVLTreeDifferential.IntRound(random.split(), seed, tree);
+				int n = steps;
+				results.add(pool.submit(() -> {
+					long operations = round.run(n);
+					checkVirtualNode();
+					return operations;
+				}));
+			}
+			long operations = 0;
+			for (Future<Long> result : results)
+				operations += result.get();
+			checkVirtualNode();
+			System.out.printf("ok: %d trees on %d threads, %d operations, seed %d%n", trees, threads, operations,
+					seed);
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * VIRTUAL_NODE is shared by all the trees, it has no parent, no children,
+	 * height -1 and size 0, whatever the trees did
+	 */
+	static void checkVirtualNode() {
+		AVLTree.AVLNode virtual = AVLTree.VIRTUAL_NODE;
+		if (virtual.parent != null || virtual.left != null || virtual.right != null || virtual.getHeight() != -1
+				|| virtual.getSize() != 0 || virtual.getValue() != null)
+			throw new AssertionError("a tree changed the shared virtual node");
+	}
+}